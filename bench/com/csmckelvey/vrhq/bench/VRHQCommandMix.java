@@ -0,0 +1,95 @@
+package com.csmckelvey.vrhq.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+//	Weighted choice of requests, parsed from "command=weight[:message],..."
+//	e.g. "-1=10,2=5,3=2,0=1:ping -c 1 127.0.0.1" sends mostly health checks and a ping now and then
+//	Commands sent over TCP run their message, so TCP mixes need a message for everything but -1 and the server commands
+public class VRHQCommandMix {
+	
+	private final List<Entry> entries = new ArrayList<>();
+	private int totalWeight = 0;
+	
+	public static class Entry {
+		
+		final int command;
+		final int weight;
+		final String message;
+		
+		Entry(int command, int weight, String message) {
+			this.command = command;
+			this.weight = weight;
+			this.message = message;
+		}
+		
+		public int getCommand() {
+			return command;
+		}
+		
+		public String getMessage() {
+			return message;
+		}
+	}
+	
+	public static VRHQCommandMix parse(String spec) {
+		VRHQCommandMix mix = new VRHQCommandMix();
+		for (String part : spec.split(",")) {
+			String entry = part.trim();
+			if (entry.isEmpty()) {
+				continue;
+			}
+			
+			int equals = entry.indexOf('=');
+			if (equals < 0) {
+				throw new IllegalArgumentException("Expected command=weight in [" + entry + "]");
+			}
+			int colon = entry.indexOf(':', equals);
+			
+			int command = Integer.parseInt(entry.substring(0, equals).trim());
+			int weight = Integer.parseInt((colon < 0 ? entry.substring(equals + 1) : entry.substring(equals + 1, colon)).trim());
+			String message = colon < 0 ? null : entry.substring(colon + 1);
+			mix.add(command, weight, message);
+		}
+		
+		if (mix.totalWeight == 0) {
+			throw new IllegalArgumentException("Command mix [" + spec + "] has no weight");
+		}
+		return mix;
+	}
+	
+	public void add(int command, int weight, String message) {
+		if (weight < 0) {
+			throw new IllegalArgumentException("Negative weight for command " + command);
+		}
+		entries.add(new Entry(command, weight, message));
+		totalWeight += weight;
+	}
+	
+	public Entry next() {
+		int pick = ThreadLocalRandom.current().nextInt(totalWeight);
+		for (Entry entry : entries) {
+			pick -= entry.weight;
+			if (pick < 0) {
+				return entry;
+			}
+		}
+		return entries.get(entries.size() - 1);
+	}
+	
+	@Override
+	public String toString() {
+		StringBuilder text = new StringBuilder();
+		for (Entry entry : entries) {
+			if (text.length() > 0) {
+				text.append(", ");
+			}
+			text.append(entry.command).append('=').append(entry.weight);
+			if (entry.message != null) {
+				text.append(" [").append(entry.message).append(']');
+			}
+		}
+		return text.toString();
+	}
+}
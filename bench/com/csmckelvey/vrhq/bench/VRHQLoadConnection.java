@@ -0,0 +1,164 @@
+package com.csmckelvey.vrhq.bench;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+import javax.microedition.io.Connector;
+import javax.microedition.io.StreamConnection;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.intel.bluetooth.BlueCoveImpl;
+
+//	One simulated client's link to the server
+//	Every request asks for a streamed response so the end frame carries the exit code, plain text responses can not
+//	be told apart from command output that contains blank lines
+public abstract class VRHQLoadConnection implements AutoCloseable {
+	
+	private static final JsonParser parser = new JsonParser();
+	
+	protected final int timeoutMillis;
+	private long nextId = 0;
+	
+	protected VRHQLoadConnection(int timeoutMillis) {
+		this.timeoutMillis = timeoutMillis;
+	}
+	
+	//	Sends one request and blocks until its end frame, returns the exit code
+	public abstract int send(int command, String message) throws IOException;
+	
+	@Override
+	public abstract void close();
+	
+	protected String request(int command, String message, boolean tagged) {
+		JsonObject request = new JsonObject();
+		if (tagged) {
+			request.addProperty("id", String.valueOf(nextId++));
+		}
+		request.addProperty("command", command);
+		if (message != null) {
+			request.addProperty("message", message);
+		}
+		request.addProperty("stream", true);
+		return request.toString() + "\n";
+	}
+	
+	//	Skips chunk frames until the end frame
+	protected static int readEnd(BufferedReader in) throws IOException {
+		String line;
+		while ((line = in.readLine()) != null) {
+			if (line.isEmpty() || line.charAt(0) != '{') {
+				//	Text responses, "Invalid Request" or "Server Busy"
+				return -1;
+			}
+			
+			JsonObject frame = parser.parse(line).getAsJsonObject();
+			if ("end".equals(frame.get("type").getAsString())) {
+				return frame.get("exitCode").getAsInt();
+			}
+		}
+		throw new IOException("Connection closed before the response ended");
+	}
+	
+	//	A new connection for every request, the way the original clients talk to the server
+	public static class Tcp extends VRHQLoadConnection {
+		
+		private final InetSocketAddress address;
+		
+		public Tcp(InetSocketAddress address, int timeoutMillis) {
+			super(timeoutMillis);
+			this.address = address;
+		}
+		
+		@Override
+		public int send(int command, String message) throws IOException {
+			try (Socket socket = new Socket()) {
+				socket.connect(address, timeoutMillis);
+				socket.setSoTimeout(timeoutMillis);
+				socket.setTcpNoDelay(true);
+				
+				socket.getOutputStream().write(request(command, message, false).getBytes(StandardCharsets.UTF_8));
+				return readEnd(new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8)));
+			}
+		}
+		
+		@Override
+		public void close() {}
+	}
+	
+	//	One persistent connection carrying tagged requests, one outstanding at a time
+	public static class PipelinedTcp extends VRHQLoadConnection {
+		
+		private final Socket socket;
+		private final OutputStream out;
+		private final BufferedReader in;
+		
+		public PipelinedTcp(InetSocketAddress address, int timeoutMillis) throws IOException {
+			super(timeoutMillis);
+			socket = new Socket();
+			socket.connect(address, timeoutMillis);
+			socket.setSoTimeout(timeoutMillis);
+			socket.setTcpNoDelay(true);
+			out = socket.getOutputStream();
+			in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+		}
+		
+		@Override
+		public int send(int command, String message) throws IOException {
+			out.write(request(command, message, true).getBytes(StandardCharsets.UTF_8));
+			out.flush();
+			return readEnd(in);
+		}
+		
+		@Override
+		public void close() {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				//	Nothing left to clean up
+			}
+		}
+	}
+	
+	//	A persistent RFCOMM link, btspp:// URL of the server's service
+	//	Read timeouts are not available through JSR-82, a stuck request holds the client until the server answers
+	public static class Bluetooth extends VRHQLoadConnection {
+		
+		private final StreamConnection connection;
+		private final OutputStream out;
+		private final BufferedReader in;
+		
+		public Bluetooth(String url, int timeoutMillis) throws IOException {
+			super(timeoutMillis);
+			//	With thread local stacks (the emulator) this creates the calling client thread's own device the first time
+			BlueCoveImpl.getThreadBluetoothStackID();
+			connection = (StreamConnection) Connector.open(url, Connector.READ_WRITE, true);
+			out = connection.openOutputStream();
+			in = new BufferedReader(new InputStreamReader(connection.openInputStream(), StandardCharsets.UTF_8));
+		}
+		
+		@Override
+		public int send(int command, String message) throws IOException {
+			out.write(request(command, message, false).getBytes(StandardCharsets.UTF_8));
+			out.flush();
+			return readEnd(in);
+		}
+		
+		//	The link only goes down once both streams and the connection are closed
+		@Override
+		public void close() {
+			try {
+				out.close();
+				in.close();
+				connection.close();
+			} catch (IOException e) {
+				//	Nothing left to clean up
+			}
+		}
+	}
+}
@@ -0,0 +1,364 @@
+package com.csmckelvey.vrhq.bench;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.bluetooth.DiscoveryAgent;
+import javax.bluetooth.LocalDevice;
+import javax.bluetooth.ServiceRecord;
+import javax.bluetooth.UUID;
+
+import com.csmckelvey.vrhq.server.VRHQLatencyRecorder;
+import com.intel.bluetooth.BlueCoveImpl;
+
+//	Simulates N clients against a running VRHQServer over TCP, over Bluetooth, or both, and reports every few seconds:
+//	throughput, latency percentiles, errors, and the server's heap and thread count taken from its metrics dump
+//
+//	--tcp host:port           TCP target
+//	--bluetooth url|discover  RFCOMM target, "discover" looks the service up by --uuid
+//	--clients n               clients per transport (default 4)
+//	--rate n                  requests per second per transport, 0 sends as fast as the clients can (default 0)
+//	--mix spec                see VRHQCommandMix (default "-1=1", health checks only)
+//	--duration seconds        0 runs until interrupted (default 60)
+//	--report seconds          report interval (default 10)
+//	--timeout millis          TCP connect and read timeout (default 30000)
+//	--pipelined               TCP clients keep one connection and tag their requests
+//
+//	For Bluetooth without devices run a bluecove-emu EmuServer and start both the server and this tool with
+//	-Dbluecove.stack=emulator -Dbluecove.emu.rmiRegistryHost=<host> -Dbluecove.emu.rmiRegistryPort=<port>
+public class VRHQLoadGenerator {
+	
+	//	A recorder with one slot that never rotates
+	private static final long FOREVER = Long.MAX_VALUE / 4;
+	private static final String DEFAULT_UUID = "00001200-0000-1000-8000-00805f9b9999";
+	private static final Pattern HEAP = Pattern.compile("heap used (\\d+)KB");
+	private static final Pattern THREADS = Pattern.compile("threads live (\\d+)");
+	
+	private final Map<String, String> options;
+	private final VRHQCommandMix mix;
+	private final int clients;
+	private final double rate;
+	private final int timeoutMillis;
+	private final InetSocketAddress tcpAddress;
+	private final List<Transport> transports = new ArrayList<>();
+	private final List<Thread> threads = new ArrayList<>();
+	private volatile boolean running = true;
+	private boolean finished = false;
+	
+	private long startedAt;
+	private long[] firstServerSample = null;
+	private long[] lastServerSample = null;
+	
+	//	Results of one transport, the interval recorder is swapped out at every report
+	static class Transport {
+		
+		final String name;
+		final LongAdder requests = new LongAdder();
+		final LongAdder errors = new LongAdder();
+		final LongAdder failures = new LongAdder();
+		final VRHQLatencyRecorder total = new VRHQLatencyRecorder(FOREVER, 1);
+		final AtomicReference<VRHQLatencyRecorder> interval = new AtomicReference<>(new VRHQLatencyRecorder(FOREVER, 1));
+		long reportedRequests = 0;
+		long reportedErrors = 0;
+		long reportedFailures = 0;
+		
+		Transport(String name) {
+			this.name = name;
+		}
+		
+		void record(long micros) {
+			total.record(micros);
+			interval.get().record(micros);
+		}
+	}
+	
+	interface ConnectionFactory {
+		VRHQLoadConnection open() throws IOException;
+	}
+	
+	public static void main(String[] args) throws Exception {
+		Map<String, String> options = parseOptions(args);
+		if (!options.containsKey("tcp") && !options.containsKey("bluetooth")) {
+			System.err.println("Usage: VRHQLoadGenerator [--tcp host:port] [--bluetooth url|discover] [--clients n] [--rate n] "
+					+ "[--mix spec] [--duration s] [--report s] [--timeout ms] [--pipelined]");
+			System.exit(2);
+		}
+		
+		VRHQLoadGenerator generator = new VRHQLoadGenerator(options);
+		Runtime.getRuntime().addShutdownHook(new Thread(generator::finish, "vrhq-load-stop"));
+		generator.run();
+	}
+	
+	public VRHQLoadGenerator(Map<String, String> options) {
+		this.options = options;
+		this.mix = VRHQCommandMix.parse(options.getOrDefault("mix", "-1=1"));
+		this.clients = Integer.parseInt(options.getOrDefault("clients", "4"));
+		this.rate = Double.parseDouble(options.getOrDefault("rate", "0"));
+		this.timeoutMillis = Integer.parseInt(options.getOrDefault("timeout", "30000"));
+		
+		String tcp = options.get("tcp");
+		if (tcp != null) {
+			int colon = tcp.lastIndexOf(':');
+			tcpAddress = new InetSocketAddress(tcp.substring(0, colon), Integer.parseInt(tcp.substring(colon + 1)));
+		}
+		else {
+			tcpAddress = null;
+		}
+	}
+	
+	public void run() throws Exception {
+		long durationMillis = TimeUnit.SECONDS.toMillis(Long.parseLong(options.getOrDefault("duration", "60")));
+		long reportMillis = TimeUnit.SECONDS.toMillis(Long.parseLong(options.getOrDefault("report", "10")));
+		
+		System.out.println("Clients " + clients + " per transport, rate " + (rate > 0 ? rate + "/s" : "unlimited") + ", mix " + mix);
+		CountDownLatch ready = new CountDownLatch(1);
+		
+		if (tcpAddress != null) {
+			boolean pipelined = options.containsKey("pipelined");
+			start(new Transport(pipelined ? "tcp-pipe" : "tcp"), ready, pipelined 
+					? () -> new VRHQLoadConnection.PipelinedTcp(tcpAddress, timeoutMillis) 
+					: () -> new VRHQLoadConnection.Tcp(tcpAddress, timeoutMillis));
+		}
+		
+		String bluetooth = options.get("bluetooth");
+		if (bluetooth != null) {
+			//	An emulated device holds one link to a service, so on the emulator every client thread gets a device of its own
+			if (BlueCoveImpl.STACK_EMULATOR.equals(System.getProperty("bluecove.stack"))) {
+				BlueCoveImpl.useThreadLocalBluetoothStack();
+			}
+			String url = "discover".equals(bluetooth) ? discover(options.getOrDefault("uuid", DEFAULT_UUID)) : bluetooth;
+			System.out.println("Bluetooth service @ " + url);
+			start(new Transport("bluetooth"), ready, () -> new VRHQLoadConnection.Bluetooth(url, timeoutMillis));
+		}
+		
+		startedAt = System.currentTimeMillis();
+		firstServerSample = sampleServer();
+		ready.countDown();
+		System.out.println(String.format("%8s %-10s %9s %9s %9s %9s %9s %9s %7s %7s %10s %7s", 
+				"elapsed", "transport", "requests", "rps", "p50ms", "p90ms", "p99ms", "maxms", "errors", "failed", "heapKB", "threads"));
+		
+		long deadline = durationMillis > 0 ? startedAt + durationMillis : Long.MAX_VALUE;
+		long lastReport = startedAt;
+		while (running && System.currentTimeMillis() < deadline) {
+			Thread.sleep(Math.max(1, Math.min(reportMillis - (System.currentTimeMillis() - lastReport), deadline - System.currentTimeMillis())));
+			if (System.currentTimeMillis() - lastReport >= reportMillis) {
+				long now = System.currentTimeMillis();
+				report(now - lastReport);
+				lastReport = now;
+			}
+		}
+		
+		finish();
+	}
+	
+	//	Called at the end of the run or on ctrl-c, whichever comes first
+	public synchronized void finish() {
+		if (finished) {
+			return;
+		}
+		finished = true;
+		stop();
+		summary();
+	}
+	
+	private void start(Transport transport, CountDownLatch ready, ConnectionFactory factory) {
+		transports.add(transport);
+		
+		//	Each client gets an equal share of the rate
+		long intervalNanos = rate > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) * clients / rate) : 0;
+		for (int i = 0; i < clients; i++) {
+			Thread thread = new Thread(() -> drive(transport, ready, factory, intervalNanos), "vrhq-load-" + transport.name + "-" + i);
+			thread.setDaemon(true);
+			threads.add(thread);
+			thread.start();
+		}
+	}
+	
+	//	Latency is measured from when the request was due, not when it was sent, so a stalled server
+	//	shows up in the percentiles instead of just slowing the clients down
+	private void drive(Transport transport, CountDownLatch ready, ConnectionFactory factory, long intervalNanos) {
+		VRHQLoadConnection connection = null;
+		try {
+			ready.await();
+			long due = System.nanoTime() + (intervalNanos > 0 ? (long) (Math.random() * intervalNanos) : 0);
+			
+			while (running) {
+				if (intervalNanos > 0) {
+					long wait = due - System.nanoTime();
+					if (wait > 0) {
+						TimeUnit.NANOSECONDS.sleep(wait);
+					}
+				}
+				else {
+					due = System.nanoTime();
+				}
+				
+				VRHQCommandMix.Entry request = mix.next();
+				try {
+					if (connection == null) {
+						connection = factory.open();
+					}
+					int exitCode = connection.send(request.getCommand(), request.getMessage());
+					if (exitCode != 0) {
+						transport.errors.increment();
+					}
+				} catch (IOException | RuntimeException e) {
+					transport.failures.increment();
+					if (connection != null) {
+						connection.close();
+						connection = null;
+					}
+				}
+				
+				transport.requests.increment();
+				transport.record((System.nanoTime() - due) / 1000);
+				due += intervalNanos;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			if (connection != null) {
+				connection.close();
+			}
+		}
+	}
+	
+	private void report(long elapsedMillis) {
+		long[] server = sampleServer();
+		for (Transport transport : transports) {
+			VRHQLatencyRecorder.Snapshot snapshot = transport.interval.getAndSet(new VRHQLatencyRecorder(FOREVER, 1)).snapshot(FOREVER);
+			long requests = transport.requests.sum();
+			long errors = transport.errors.sum();
+			long failures = transport.failures.sum();
+			
+			print(System.currentTimeMillis() - startedAt, transport.name, requests - transport.reportedRequests, elapsedMillis, snapshot, 
+					errors - transport.reportedErrors, failures - transport.reportedFailures, server);
+			
+			transport.reportedRequests = requests;
+			transport.reportedErrors = errors;
+			transport.reportedFailures = failures;
+		}
+	}
+	
+	private void summary() {
+		long elapsed = System.currentTimeMillis() - startedAt;
+		long[] server = sampleServer();
+		
+		System.out.println();
+		System.out.println("Total");
+		for (Transport transport : transports) {
+			print(elapsed, transport.name, transport.requests.sum(), elapsed, transport.total.snapshot(FOREVER), 
+					transport.errors.sum(), transport.failures.sum(), server);
+		}
+		
+		if (firstServerSample != null && server != null) {
+			System.out.println(String.format("Server heap %+dKB, threads %+d over the run", server[0] - firstServerSample[0], server[1] - firstServerSample[1]));
+		}
+	}
+	
+	private void print(long elapsedMillis, String name, long requests, long periodMillis, VRHQLatencyRecorder.Snapshot snapshot, 
+			long errors, long failures, long[] server) {
+		System.out.println(String.format("%7ds %-10s %9d %9.1f %9.3f %9.3f %9.3f %9.3f %7d %7d %10s %7s", 
+				elapsedMillis / 1000, name, requests, requests * 1000.0 / Math.max(1, periodMillis), 
+				snapshot.getValueAtPercentile(50) / 1000.0, snapshot.getValueAtPercentile(90) / 1000.0, 
+				snapshot.getValueAtPercentile(99) / 1000.0, snapshot.getMax() / 1000.0, errors, failures, 
+				server == null ? "-" : String.valueOf(server[0]), server == null ? "-" : String.valueOf(server[1])));
+	}
+	
+	//	Heap used in KB and live threads, from the plain text metrics dump on the TCP port
+	private long[] sampleServer() {
+		if (tcpAddress == null) {
+			return lastServerSample;
+		}
+		
+		try (Socket socket = new Socket()) {
+			socket.connect(tcpAddress, timeoutMillis);
+			socket.setSoTimeout(timeoutMillis);
+			socket.getOutputStream().write("metrics\n".getBytes(StandardCharsets.UTF_8));
+			
+			long heap = -1;
+			long threadCount = -1;
+			BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+			String line;
+			while ((line = in.readLine()) != null) {
+				Matcher matcher = HEAP.matcher(line);
+				if (matcher.find()) {
+					heap = Long.parseLong(matcher.group(1));
+				}
+				matcher = THREADS.matcher(line);
+				if (matcher.find()) {
+					threadCount = Long.parseLong(matcher.group(1));
+				}
+			}
+			
+			if (heap >= 0 && threadCount >= 0) {
+				lastServerSample = new long[] { heap, threadCount };
+			}
+		} catch (IOException e) {
+			//	A busy server may refuse the extra connection, keep the last sample
+		}
+		return lastServerSample;
+	}
+	
+	private static String discover(String uuid) throws IOException {
+		DiscoveryAgent agent = LocalDevice.getLocalDevice().getDiscoveryAgent();
+		for (int attempt = 0; attempt < 5; attempt++) {
+			String url = agent.selectService(new UUID(uuid.replaceAll("-", ""), false), ServiceRecord.NOAUTHENTICATE_NOENCRYPT, false);
+			if (url != null) {
+				return url;
+			}
+		}
+		throw new IOException("No server offering " + uuid + " was found");
+	}
+	
+	public void stop() {
+		if (!running) {
+			return;
+		}
+		running = false;
+		
+		for (Thread thread : threads) {
+			thread.interrupt();
+		}
+		for (Thread thread : threads) {
+			try {
+				thread.join(TimeUnit.SECONDS.toMillis(5));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+	
+	private static Map<String, String> parseOptions(String[] args) {
+		Map<String, String> options = new HashMap<>();
+		for (int i = 0; i < args.length; i++) {
+			if (!args[i].startsWith("--")) {
+				throw new IllegalArgumentException("Unexpected argument " + args[i]);
+			}
+			
+			String name = args[i].substring(2);
+			if (i + 1 < args.length && !args[i + 1].startsWith("--")) {
+				options.put(name, args[++i]);
+			}
+			else {
+				options.put(name, "true");
+			}
+		}
+		return options;
+	}
+}
@@ -0,0 +1,108 @@
+package com.csmckelvey.vrhq.server;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import javax.bluetooth.DiscoveryAgent;
+import javax.bluetooth.LocalDevice;
+import javax.bluetooth.ServiceRecord;
+import javax.bluetooth.UUID;
+
+import com.intel.bluetooth.BlueCoveImpl;
+import com.intel.bluetooth.EmulatorTestsHelper;
+
+//	A real VRHQServer inside the benchmark JVM
+//	TCP listens on a free loopback port, Bluetooth listens on its own bluecove-emu device so clients on another
+//	emulated device reach it over emulated RFCOMM, run with -Dbluecove.stack=emulator
+class VRHQBenchmarkServer {
+	
+	//	Same as the UUID in config.properties
+	static final String SERVICE_UUID = "00001200-0000-1000-8000-00805f9b9999";
+	
+	//	No queue and no per client limit, every benchmark thread connects from the loopback address
+	private static final VRHQAdmissionControl UNLIMITED = new VRHQAdmissionControl(Integer.MAX_VALUE, 0, 0, 0, 0);
+	
+	private final VRHQServer server = new VRHQServer();
+	private boolean initialised = false;
+	private int port = -1;
+	private Object clientStack = null;
+	private String bluetoothUrl = null;
+	
+	void startTcp() throws IOException, InterruptedException {
+		init();
+		try (ServerSocket probe = new ServerSocket(0)) {
+			port = probe.getLocalPort();
+		}
+		server.startListening(port);
+		
+		//	The listener binds on its own thread
+		for (int attempt = 0; attempt < 100; attempt++) {
+			try {
+				new Socket(InetAddress.getLoopbackAddress(), port).close();
+				return;
+			} catch (IOException e) {
+				Thread.sleep(20);
+			}
+		}
+		throw new IOException("TCP listener did not start on " + port);
+	}
+	
+	void startBluetooth() throws IOException, InterruptedException {
+		init();
+		EmulatorTestsHelper.startInProcessServer();
+		
+		Thread listener = EmulatorTestsHelper.runNewEmulatorStack(server::startListeningBluetooth);
+		listener.setName("vrhq-bench-bt");
+		
+		EmulatorTestsHelper.useThreadLocalEmulator();
+		clientStack = BlueCoveImpl.getThreadBluetoothStackID();
+		
+		//	Service discovery only finds the record once the listener has registered it
+		DiscoveryAgent agent = LocalDevice.getLocalDevice().getDiscoveryAgent();
+		UUID uuid = new UUID(SERVICE_UUID.replaceAll("-", ""), false);
+		for (int attempt = 0; attempt < 10 && bluetoothUrl == null; attempt++) {
+			bluetoothUrl = agent.selectService(uuid, ServiceRecord.NOAUTHENTICATE_NOENCRYPT, false);
+		}
+		if (bluetoothUrl == null) {
+			throw new IOException("Bluetooth service " + SERVICE_UUID + " was not found on the emulator");
+		}
+	}
+	
+	//	Benchmark threads are not the thread that started the emulator, they have to join the client device first
+	void joinClientStack() {
+		BlueCoveImpl.setThreadBluetoothStackID(clientStack);
+	}
+	
+	//	The journal, the status sampler and the Wi-Fi scanner would write files and run work in the background of the measurements
+	private synchronized void init() {
+		if (!initialised) {
+			server.overrideProperty("journalDirectory", "");
+			server.overrideProperty("statusSampleInterval", "0");
+			server.overrideProperty("wifiScanInterval", "0");
+			server.init();
+			server.setAdmissionControl(UNLIMITED);
+			initialised = true;
+		}
+	}
+	
+	int getPort() {
+		return port;
+	}
+	
+	String getBluetoothUrl() {
+		return bluetoothUrl;
+	}
+	
+	VRHQServer getServer() {
+		return server;
+	}
+	
+	void stop() {
+		server.shutdown();
+		if (clientStack != null) {
+			EmulatorTestsHelper.stopInProcessServer();
+		}
+	}
+}
@@ -0,0 +1,131 @@
+package com.csmckelvey.vrhq.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.csmckelvey.vrhq.core.Constants;
+
+//	Request decode and response encode for both framings, one decoder and encoder per connection as on the server
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class VRHQCodecBenchmark {
+	
+	//	Length of the request message and of the response text
+	@Param({ "16", "256", "4096" })
+	public int size;
+	
+	private VRHQFrameDecoder jsonDecoder;
+	private VRHQFrameDecoder binaryDecoder;
+	private VRHQFrameEncoder jsonEncoder;
+	private VRHQFrameEncoder binaryEncoder;
+	private String response;
+	
+	@Setup
+	public void setup() {
+		VRHQCodec codec = new VRHQCodec();
+		String message = "x".repeat(size);
+		
+		String json = "{\"command\":" + Constants.SC_PING + ",\"message\":\"" + message + "\",\"stream\":true}\n";
+		jsonDecoder = codec.newDecoder(new ReplayInputStream(json.getBytes(StandardCharsets.UTF_8)));
+		
+		byte[] body = message.getBytes(StandardCharsets.UTF_8);
+		ByteArrayOutputStream frame = new ByteArrayOutputStream();
+		byte[] varint = new byte[5];
+		byte[] command = new byte[5];
+		int commandLength = VRHQCodec.writeVarint(VRHQCodec.zigzagEncode(Constants.SC_PING), command, 0);
+		frame.write(varint, 0, VRHQCodec.writeVarint(commandLength + 1 + body.length, varint, 0));
+		frame.write(command, 0, commandLength);
+		frame.write(VRHQCodec.REQUEST_STREAM);
+		frame.write(body, 0, body.length);
+		binaryDecoder = new VRHQBinaryFrameDecoder(new ReplayInputStream(frame.toByteArray()), VRHQCodec.DEFAULT_MAX_FRAME_SIZE);
+		
+		//	Text that compresses the way ifconfig output does
+		StringBuilder text = new StringBuilder(size);
+		while (text.length() < size) {
+			text.append("eth0: flags=4163<UP,BROADCAST,RUNNING,MULTICAST>  mtu 1500\n");
+		}
+		response = text.substring(0, size);
+		jsonEncoder = codec.newEncoder(OutputStream.nullOutputStream());
+		binaryEncoder = new VRHQBinaryFrameEncoder(OutputStream.nullOutputStream(), true, VRHQCodec.DEFAULT_COMPRESSION_THRESHOLD);
+	}
+	
+	@TearDown
+	public void tearDown() {
+		binaryEncoder.close();
+	}
+	
+	@Benchmark
+	public VRHQRequestFrame decodeJson() throws Exception {
+		return jsonDecoder.read();
+	}
+	
+	@Benchmark
+	public VRHQRequestFrame decodeBinary() throws Exception {
+		return binaryDecoder.read();
+	}
+	
+	@Benchmark
+	public boolean encodeJsonText() {
+		jsonEncoder.writeText(response);
+		return jsonEncoder.checkError();
+	}
+	
+	@Benchmark
+	public boolean encodeJsonChunk() {
+		jsonEncoder.writeChunk(response);
+		return jsonEncoder.checkError();
+	}
+	
+	//	Deflated once the response reaches the compression threshold
+	@Benchmark
+	public boolean encodeBinaryText() {
+		binaryEncoder.writeText(response);
+		return binaryEncoder.checkError();
+	}
+	
+	//	Hands out the same frame forever, so the decoder never sees the end of the connection
+	static class ReplayInputStream extends InputStream {
+		
+		private final byte[] frame;
+		private int position = 0;
+		
+		ReplayInputStream(byte[] frame) {
+			this.frame = frame;
+		}
+		
+		@Override
+		public int read() {
+			int next = frame[position] & 0xFF;
+			position = (position + 1) % frame.length;
+			return next;
+		}
+		
+		@Override
+		public int read(byte[] buffer, int offset, int length) {
+			int count = Math.min(length, frame.length - position);
+			System.arraycopy(frame, position, buffer, offset, count);
+			position = (position + count) % frame.length;
+			return count;
+		}
+	}
+}
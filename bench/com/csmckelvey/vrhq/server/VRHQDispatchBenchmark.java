@@ -0,0 +1,89 @@
+package com.csmckelvey.vrhq.server;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.csmckelvey.vrhq.core.Constants;
+
+//	What a request costs between the decoder and the encoder: the command table, the result cache and the command itself
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dbluecove.stack=emulator")
+public class VRHQDispatchBenchmark {
+	
+	//	Lines printed by the stub process
+	@Param({ "1", "100", "1000" })
+	public int lines;
+	
+	private VRHQServer server;
+	private VRHQProcessExecutor executor;
+	private VRHQRequestFrame healthCheck;
+	private VRHQRequestFrame networkInfo;
+	private VRHQRequestFrame networkInfoRefresh;
+	private String[] stubProcess;
+	
+	@Setup(Level.Trial)
+	public void setup() {
+		server = new VRHQServer();
+		server.init();
+		executor = new VRHQProcessExecutor(4, 16);
+		
+		healthCheck = new VRHQRequestFrame(VRHQCodec.newRequest(-1, null), false, false, false);
+		networkInfo = new VRHQRequestFrame(VRHQCodec.newRequest(Constants.SC_NETWORK_INFO, null), false, false, false);
+		networkInfoRefresh = new VRHQRequestFrame(VRHQCodec.newRequest(Constants.SC_NETWORK_INFO, null), false, true, false);
+		stubProcess = new String[] { "seq", "1", String.valueOf(lines) };
+	}
+	
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		executor.shutdown();
+		server.shutdown();
+	}
+	
+	@Benchmark
+	public String healthCheck() {
+		VRHQOutputBuffer output = new VRHQOutputBuffer();
+		server.runBluetoothCommand(healthCheck, output);
+		return output.toString();
+	}
+	
+	//	Served from the result cache while the entry is younger than cacheTtl.NETWORK_INFO
+	@Benchmark
+	public String networkInfoCached() {
+		VRHQOutputBuffer output = new VRHQOutputBuffer();
+		server.runBluetoothCommand(networkInfo, output);
+		return output.toString();
+	}
+	
+	//	Walks the interfaces and /proc/net/dev on every call
+	@Benchmark
+	public String networkInfoRefresh() {
+		VRHQOutputBuffer output = new VRHQOutputBuffer();
+		server.runBluetoothCommand(networkInfoRefresh, output);
+		return output.toString();
+	}
+	
+	//	Fork, exec and collecting the output of a process that only prints lines
+	@Benchmark
+	public String execute() throws Exception {
+		VRHQOutputBuffer output = new VRHQOutputBuffer();
+		executor.submit(stubProcess, 10000, output).get();
+		return output.toString();
+	}
+}
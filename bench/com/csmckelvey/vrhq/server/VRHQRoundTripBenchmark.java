@@ -0,0 +1,124 @@
+package com.csmckelvey.vrhq.server;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import javax.microedition.io.Connector;
+import javax.microedition.io.StreamConnection;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+//	A health check request end to end, from the client writing the request to the client reading the whole response
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dbluecove.stack=emulator")
+public class VRHQRoundTripBenchmark {
+	
+	private static final byte[] HEALTH_CHECK = "{\"command\":-1}\n".getBytes(StandardCharsets.UTF_8);
+	private static final byte[] TAGGED_HEALTH_CHECK = "{\"id\":\"1\",\"command\":-1}\n".getBytes(StandardCharsets.UTF_8);
+	
+	@State(Scope.Benchmark)
+	public static class Server {
+		
+		VRHQBenchmarkServer server;
+		
+		@Setup(Level.Trial)
+		public void setup() throws Exception {
+			server = new VRHQBenchmarkServer();
+			server.startTcp();
+			server.startBluetooth();
+		}
+		
+		@TearDown(Level.Trial)
+		public void tearDown() {
+			server.stop();
+		}
+	}
+	
+	//	One persistent connection per benchmark thread for the pipelined and RFCOMM cases
+	@State(Scope.Thread)
+	public static class Client {
+		
+		Socket pipelined;
+		OutputStream pipelinedOut;
+		BufferedReader pipelinedIn;
+		
+		StreamConnection rfcomm;
+		OutputStream rfcommOut;
+		BufferedReader rfcommIn;
+		
+		@Setup(Level.Trial)
+		public void setup(Server server) throws IOException {
+			pipelined = new Socket(InetAddress.getLoopbackAddress(), server.server.getPort());
+			pipelined.setTcpNoDelay(true);
+			pipelinedOut = pipelined.getOutputStream();
+			pipelinedIn = new BufferedReader(new InputStreamReader(pipelined.getInputStream(), StandardCharsets.UTF_8));
+			
+			server.server.joinClientStack();
+			rfcomm = (StreamConnection) Connector.open(server.server.getBluetoothUrl());
+			rfcommOut = rfcomm.openOutputStream();
+			rfcommIn = new BufferedReader(new InputStreamReader(rfcomm.openInputStream(), StandardCharsets.UTF_8));
+		}
+		
+		@TearDown(Level.Trial)
+		public void tearDown() throws IOException {
+			pipelined.close();
+			rfcomm.close();
+		}
+	}
+	
+	//	Connection setup included, the way every client talked to the server before pipelining
+	@Benchmark
+	public String tcpConnectionPerRequest(Server server) throws IOException {
+		try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.server.getPort())) {
+			socket.setTcpNoDelay(true);
+			socket.getOutputStream().write(HEALTH_CHECK);
+			return readText(new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8)));
+		}
+	}
+	
+	//	A chunk frame and an end frame come back for every tagged request
+	@Benchmark
+	public String tcpPipelined(Client client) throws IOException {
+		client.pipelinedOut.write(TAGGED_HEALTH_CHECK);
+		client.pipelinedOut.flush();
+		client.pipelinedIn.readLine();
+		return client.pipelinedIn.readLine();
+	}
+	
+	@Benchmark
+	public String bluetoothEmulator(Client client) throws IOException {
+		client.rfcommOut.write(HEALTH_CHECK);
+		client.rfcommOut.flush();
+		return readText(client.rfcommIn);
+	}
+	
+	//	A text response is the command output, whose lines each end in a newline, followed by one more newline
+	private static String readText(BufferedReader in) throws IOException {
+		StringBuilder text = new StringBuilder();
+		String line;
+		while ((line = in.readLine()) != null && !line.isEmpty()) {
+			text.append(line).append('\n');
+		}
+		return text.toString();
+	}
+}
@@ -0,0 +1,240 @@
+package com.csmckelvey.vrhq.server;
+
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.csmckelvey.vrhq.core.Constants;
+
+//	Decides whether a request runs now, waits its turn, or is turned away straight away
+//	At most maxActive requests run at once, at most maxQueued wait for a slot and the rest are told the server is busy
+//	Waiting requests are let in by priority, and requests answered from memory never wait at all,
+//	so a health check does not sit behind a traceroute
+//	Each client, a socket or Bluetooth address, also has a token bucket so one phone can not take every slot
+public class VRHQAdmissionControl {
+	
+	public static final int ADMITTED = 0;
+	public static final int BUSY = 1;
+	public static final int RATE_LIMITED = 2;
+	
+	public static final int PRIORITY_HIGH = 0;
+	public static final int PRIORITY_NORMAL = 1;
+	public static final int PRIORITY_LOW = 2;
+	
+	//	Idle buckets are dropped once there are this many clients
+	private static final int MAX_IDLE_BUCKETS = 1024;
+	
+	private final int maxActive;
+	private final int maxQueued;
+	private final long queueTimeoutMillis;
+	private final double clientRate;
+	private final double clientBurst;
+	
+	private final ReentrantLock lock = new ReentrantLock();
+	private final PriorityQueue<Waiter> waiting = new PriorityQueue<>();
+	private final Map<String, TokenBucket> buckets = new ConcurrentHashMap<>();
+	private final AtomicLong sequence = new AtomicLong();
+	private int active = 0;
+	
+	private final AtomicLong admitted = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+	private final AtomicLong limited = new AtomicLong();
+	
+	//	Ordered by priority, then by arrival
+	class Waiter implements Comparable<Waiter> {
+		
+		final int priority;
+		final long order = sequence.getAndIncrement();
+		final Condition turn = lock.newCondition();
+		boolean granted = false;
+		
+		Waiter(int priority) {
+			this.priority = priority;
+		}
+		
+		@Override
+		public int compareTo(Waiter other) {
+			return priority != other.priority ? Integer.compare(priority, other.priority) : Long.compare(order, other.order);
+		}
+	}
+	
+	static class TokenBucket {
+		
+		private final double rate;
+		private final double burst;
+		private double tokens;
+		private long refilledAt = System.nanoTime();
+		
+		TokenBucket(double rate, double burst) {
+			this.rate = rate;
+			this.burst = burst;
+			this.tokens = burst;
+		}
+		
+		synchronized boolean tryTake() {
+			refill();
+			if (tokens < 1) {
+				return false;
+			}
+			tokens--;
+			return true;
+		}
+		
+		synchronized boolean isFull() {
+			refill();
+			return tokens >= burst;
+		}
+		
+		private void refill() {
+			long now = System.nanoTime();
+			tokens = Math.min(burst, tokens + (now - refilledAt) * rate / TimeUnit.SECONDS.toNanos(1));
+			refilledAt = now;
+		}
+	}
+	
+	//	A clientRate of 0 turns the per client limit off
+	public VRHQAdmissionControl(int maxActive, int maxQueued, long queueTimeoutMillis, double clientRate, double clientBurst) {
+		this.maxActive = maxActive;
+		this.maxQueued = maxQueued;
+		this.queueTimeoutMillis = queueTimeoutMillis;
+		this.clientRate = clientRate;
+		this.clientBurst = Math.max(1, clientBurst);
+	}
+	
+	//	Cheap answers from memory go first, commands that can run for a minute go last
+	public static int priorityOf(int command) {
+		switch (command) {
+			case -1:
+			case VRHQServerCommands.SC_METRICS:
+				return PRIORITY_HIGH;
+			case Constants.SC_TRACE:
+			case Constants.SC_SCAN_NETWORK:
+				return PRIORITY_LOW;
+			default:
+				return PRIORITY_NORMAL;
+		}
+	}
+	
+	//	Returns ADMITTED once the request may run, the caller must then call release() when it is done
+	//	An inline request is answered from memory and only counts against the client's rate, it neither takes nor waits
+	//	for a slot and is not released
+	public int admit(String client, int command, boolean inline) throws InterruptedException {
+		if (!takeToken(client)) {
+			limited.incrementAndGet();
+			return RATE_LIMITED;
+		}
+		if (inline) {
+			admitted.incrementAndGet();
+			return ADMITTED;
+		}
+		
+		Waiter waiter;
+		lock.lock();
+		try {
+			if (active < maxActive && waiting.isEmpty()) {
+				active++;
+				admitted.incrementAndGet();
+				return ADMITTED;
+			}
+			if (waiting.size() >= maxQueued) {
+				rejected.incrementAndGet();
+				return BUSY;
+			}
+			
+			waiter = new Waiter(priorityOf(command));
+			waiting.add(waiter);
+			
+			long remaining = TimeUnit.MILLISECONDS.toNanos(queueTimeoutMillis);
+			try {
+				while (!waiter.granted && remaining > 0) {
+					remaining = waiter.turn.awaitNanos(remaining);
+				}
+			} catch (InterruptedException e) {
+				abandon(waiter);
+				throw e;
+			}
+			
+			if (!waiter.granted) {
+				waiting.remove(waiter);
+				rejected.incrementAndGet();
+				return BUSY;
+			}
+			admitted.incrementAndGet();
+			return ADMITTED;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	//	Hands the slot straight to the most urgent waiter
+	public void release() {
+		lock.lock();
+		try {
+			Waiter next = waiting.poll();
+			if (next != null) {
+				next.granted = true;
+				next.turn.signal();
+			}
+			else {
+				active--;
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	//	A slot granted while the waiter was being interrupted has to be passed on, the lock is reentrant
+	private void abandon(Waiter waiter) {
+		if (waiter.granted) {
+			release();
+		}
+		else {
+			waiting.remove(waiter);
+		}
+	}
+	
+	private boolean takeToken(String client) {
+		if (clientRate <= 0 || client == null) {
+			return true;
+		}
+		
+		if (buckets.size() > MAX_IDLE_BUCKETS) {
+			buckets.values().removeIf(TokenBucket::isFull);
+		}
+		return buckets.computeIfAbsent(client, key -> new TokenBucket(clientRate, clientBurst)).tryTake();
+	}
+	
+	public int getActive() {
+		lock.lock();
+		try {
+			return active;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	public int getQueued() {
+		lock.lock();
+		try {
+			return waiting.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	public long getAdmitted() {
+		return admitted.get();
+	}
+	
+	public long getRejected() {
+		return rejected.get();
+	}
+	
+	public long getLimited() {
+		return limited.get();
+	}
+}
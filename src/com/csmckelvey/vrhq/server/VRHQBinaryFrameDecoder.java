@@ -0,0 +1,133 @@
+package com.csmckelvey.vrhq.server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import com.google.gson.JsonParseException;
+
+//	Reads binary request frames, see VRHQCodec for the layout
+public class VRHQBinaryFrameDecoder implements VRHQFrameDecoder {
+	
+	private final InputStream in;
+	private final int maxFrameSize;
+	private byte[] frame = new byte[256];
+	private long frameStartNanos = 0;
+	
+	public VRHQBinaryFrameDecoder(InputStream in, int maxFrameSize) {
+		this.in = in;
+		this.maxFrameSize = maxFrameSize;
+	}
+	
+	@Override
+	public VRHQRequestFrame read() throws IOException {
+		int length = readFrame();
+		if (length < 0) {
+			return null;
+		}
+		
+		int[] position = { 0 };
+		int command;
+		try {
+			command = VRHQCodec.zigzagDecode(VRHQCodec.readVarint(frame, position, length));
+		} catch (IOException e) {
+			throw new JsonParseException("Malformed binary request", e);
+		}
+		if (position[0] >= length) {
+			throw new JsonParseException("Binary request has no flags");
+		}
+		
+		int flags = frame[position[0]++];
+		String id = null;
+		if ((flags & VRHQCodec.REQUEST_ID) != 0) {
+			try {
+				id = String.valueOf(VRHQCodec.readVarint(frame, position, length));
+			} catch (IOException e) {
+				throw new JsonParseException("Malformed binary request id", e);
+			}
+		}
+		String message = position[0] < length ? new String(frame, position[0], length - position[0], StandardCharsets.UTF_8) : null;
+		
+		VRHQRequestFrame decoded = new VRHQRequestFrame(VRHQCodec.newRequest(command, message), 
+				(flags & VRHQCodec.REQUEST_STREAM) != 0, 
+				(flags & VRHQCodec.REQUEST_REFRESH) != 0, 
+				(flags & VRHQCodec.REQUEST_CANCEL) != 0, 
+				id, null);
+		VRHQMetrics.getMetrics().recordStage(VRHQMetrics.STAGE_DECODE, frameStartNanos);
+		return decoded;
+	}
+	
+	//	The message bytes of the next frame
+	@Override
+	public String readText() throws IOException {
+		VRHQRequestFrame next = read();
+		return next == null ? null : next.getRequest().getMessage();
+	}
+	
+	private int readFrame() throws IOException {
+		int length = readLength();
+		if (length < 0) {
+			return -1;
+		}
+		
+		if (length > maxFrameSize) {
+			skip(length);
+			throw new VRHQFrameTooLargeException(maxFrameSize);
+		}
+		if (length > frame.length) {
+			frame = Arrays.copyOf(frame, Math.max(length, frame.length * 2));
+		}
+		
+		int read = 0;
+		while (read < length) {
+			int count = in.read(frame, read, length - read);
+			if (count < 0) {
+				throw new EOFException("Connection closed inside a frame");
+			}
+			read += count;
+		}
+		return length;
+	}
+	
+	//	-1 only for the input ending cleanly between frames, a length past an int is corrupt and never read as the end
+	private int readLength() throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 35; shift += 7) {
+			int next = in.read();
+			if (shift == 0) {
+				frameStartNanos = System.nanoTime();
+			}
+			if (next < 0) {
+				if (shift == 0) {
+					return -1;
+				}
+				throw new EOFException("Connection closed inside a frame length");
+			}
+			
+			value |= (long) (next & 0x7F) << shift;
+			if ((next & 0x80) == 0) {
+				if (value > Integer.MAX_VALUE) {
+					throw new VRHQMalformedFrameException("Frame length " + value + " is out of range");
+				}
+				return (int) value;
+			}
+		}
+		throw new VRHQMalformedFrameException("Frame length is not a valid varint");
+	}
+	
+	private void skip(int length) throws IOException {
+		long remaining = length;
+		while (remaining > 0) {
+			long skipped = in.skip(remaining);
+			if (skipped <= 0) {
+				if (in.read() < 0) {
+					throw new EOFException("Connection closed inside a frame");
+				}
+				skipped = 1;
+			}
+			remaining -= skipped;
+		}
+	}
+}
@@ -0,0 +1,120 @@
+package com.csmckelvey.vrhq.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+//	Writes binary response frames, see VRHQCodec for the layout
+//	Payloads at or above the threshold are deflated when the client asked for it and it actually helps
+public class VRHQBinaryFrameEncoder implements VRHQFrameEncoder {
+	
+	private final OutputStream out;
+	private final boolean deflate;
+	private final int compressionThreshold;
+	private final Deflater deflater;
+	
+	private byte[] compressed = new byte[1024];
+	private byte[] frame = new byte[1024];
+	private boolean error = false;
+	private boolean closed = false;
+	
+	public VRHQBinaryFrameEncoder(OutputStream out, boolean deflate, int compressionThreshold) {
+		this.out = new VRHQInterruptSafeOutputStream(out);
+		this.deflate = deflate;
+		this.compressionThreshold = compressionThreshold;
+		this.deflater = deflate ? new Deflater(Deflater.BEST_SPEED) : null;
+	}
+	
+	@Override
+	public synchronized void writeText(String response) {
+		byte[] payload = response.getBytes(StandardCharsets.UTF_8);
+		write(VRHQCodec.RESPONSE_TEXT, null, payload, payload.length);
+	}
+	
+	@Override
+	public synchronized void writeChunk(String id, String data) {
+		byte[] payload = data.getBytes(StandardCharsets.UTF_8);
+		write(VRHQCodec.RESPONSE_CHUNK, id, payload, payload.length);
+	}
+	
+	@Override
+	public synchronized void writeEnd(String id, int exitCode) {
+		byte[] payload = new byte[5];
+		int length = VRHQCodec.writeVarint(VRHQCodec.zigzagEncode(exitCode), payload, 0);
+		write(VRHQCodec.RESPONSE_END, id, payload, length);
+	}
+	
+	@Override
+	public synchronized boolean checkError() {
+		return error;
+	}
+	
+	//	The deflater's zlib state is native memory, it is freed here rather than whenever the GC gets to it
+	@Override
+	public synchronized void close() {
+		closed = true;
+		if (deflater != null) {
+			deflater.end();
+		}
+	}
+	
+	//	Binary ids are always the numbers the client sent in its binary requests
+	private void write(int type, String id, byte[] payload, int length) {
+		if (closed) {
+			error = true;
+			return;
+		}
+		
+		int flags = id == null ? 0 : VRHQCodec.RESPONSE_ID;
+		
+		if (deflate && length >= compressionThreshold) {
+			int compressedLength = compress(payload, length);
+			if (compressedLength < length) {
+				payload = compressed;
+				length = compressedLength;
+				flags |= VRHQCodec.RESPONSE_DEFLATED;
+			}
+		}
+		
+		byte[] idBytes = new byte[5];
+		int idLength = id == null ? 0 : VRHQCodec.writeVarint(Integer.parseInt(id), idBytes, 0);
+		
+		//	length varint, type, flags, id, payload in one write so the frame leaves in as few RFCOMM packets as possible
+		int bodyLength = 2 + idLength + length;
+		if (frame.length < bodyLength + 5) {
+			frame = new byte[Math.max(bodyLength + 5, frame.length * 2)];
+		}
+		
+		int position = VRHQCodec.writeVarint(bodyLength, frame, 0);
+		frame[position++] = (byte) type;
+		frame[position++] = (byte) flags;
+		System.arraycopy(idBytes, 0, frame, position, idLength);
+		position += idLength;
+		System.arraycopy(payload, 0, frame, position, length);
+		position += length;
+		
+		try {
+			out.write(frame, 0, position);
+			out.flush();
+		} catch (IOException e) {
+			error = true;
+		}
+	}
+	
+	private int compress(byte[] payload, int length) {
+		deflater.reset();
+		deflater.setInput(payload, 0, length);
+		deflater.finish();
+		
+		int total = 0;
+		while (!deflater.finished()) {
+			if (total == compressed.length) {
+				compressed = Arrays.copyOf(compressed, compressed.length * 2);
+			}
+			total += deflater.deflate(compressed, total, compressed.length - total);
+		}
+		return total;
+	}
+}
@@ -1,15 +1,20 @@
 package com.csmckelvey.vrhq.server;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.bluetooth.BluetoothStateException;
 import javax.bluetooth.DataElement;
@@ -26,111 +31,84 @@ import javax.microedition.io.StreamConnectionNotifier;
 
 import com.csmckelvey.vrhq.core.Constants;
 import com.csmckelvey.vrhq.core.VRHQLogger;
-import com.csmckelvey.vrhq.core.VRHQRequest;
-import com.google.gson.Gson;
 
 public class VRHQBluetooth {
+	//	A GIAC inquiry runs for about 10 seconds, anything past these is a stuck stack
+	public static final long INQUIRY_TIMEOUT_MILLIS = 30000;
+	public static final long SERVICE_SEARCH_TIMEOUT_MILLIS = 20000;
+	
 	protected RemoteDevice clientDevice;
 	protected boolean clientFound;
-	protected String clientToSearchFor = "";
 	
 	private static VRHQLogger logger;
 	
 	protected List<RemoteDevice> currentScannedDevices = new ArrayList<>();
 	protected Map<String, String> bluetoothServicesFound = new HashMap<>();
-	protected List<RemoteDevice> allBluetoothClientsFound = new ArrayList<>();
+	protected VRHQDeviceRegistry deviceRegistry = new VRHQDeviceRegistry(0);
+	protected final VRHQFriendlyNameCache friendlyNames = new VRHQFriendlyNameCache(3600000);
+	
+	protected ScheduledExecutorService deviceRefresher = null;
+	protected final List<DeviceListener> deviceListeners = new CopyOnWriteArrayList<>();
+	
+	//	The stack runs one inquiry at a time, callers that arrive while one is running share it
+	protected final AtomicReference<InquiryListener> currentInquiry = new AtomicReference<>();
 	
-	protected final Object deviceScanCompletedEvent = new Object();
-	protected final Object serviceScanCompletedEvent = new Object();
-	protected final Object deviceSearchCompletedEvent = new Object();
+	//	One notifier per UUID for the life of the server, opening one is a full SDP registration
+	protected final Map<String, StreamConnectionNotifier> notifiers = new ConcurrentHashMap<>();
 	
+	private static VRHQServerLogger requestLogger = VRHQServerLogger.getLogger();
+
 	static {
 		logger = VRHQLogger.getLogger();
 	}
 	
 	public void scanAllBluetoothDevices() {
-		synchronized(deviceScanCompletedEvent) {
-	        try {
-	        	currentScannedDevices.clear();
-	            LocalDevice local = LocalDevice.getLocalDevice();
-	            local.setDiscoverable(DiscoveryAgent.GIAC);
-	            DiscoveryAgent discoveryAgent = local.getDiscoveryAgent();
-	            boolean startedInquiry = discoveryAgent.startInquiry(DiscoveryAgent.GIAC, new ScanDiscoveryListener());
-	            while (startedInquiry) {
-	            	deviceScanCompletedEvent.wait();
-	            }
-	        } catch (BluetoothStateException e) {
-				logger.log("BluetoothStateException exception: " + e);
-				
-			} catch (InterruptedException e) {
-				logger.log("InterruptedException exception: " + e);
-				 Thread.currentThread().interrupt();
-	        }
-	    }
+		try {
+			List<RemoteDevice> scanned = discoverDevices(INQUIRY_TIMEOUT_MILLIS).get();
+			currentScannedDevices = scanned;
+		} catch (ExecutionException e) {
+			logger.log("Device Scan Failed: " + e.getCause());
+		} catch (InterruptedException e) {
+			logger.log("InterruptedException exception: " + e);
+			Thread.currentThread().interrupt();
+		}
 		
 		logger.log("Found " + currentScannedDevices.size() + " device(s) during this scan");
-		logger.log(allBluetoothClientsFound.size() + " total device(s) discovered");
-		
-		String tmpName;
-		for (RemoteDevice device : allBluetoothClientsFound) {
-			try { 
-				tmpName = device.getFriendlyName(true); 
-			} catch (IOException e) { 
-				tmpName = "Unknown Name";
-				logger.logException(e);
-			}
-			
-			logger.log(tmpName + " @ " + device.getBluetoothAddress(), 1, 0);
+		List<RemoteDevice> knownDevices = deviceRegistry.getDevices();
+		logger.log(knownDevices.size() + " total device(s) discovered");
+		
+		for (RemoteDevice device : knownDevices) {
+			logger.log(friendlyNames.describe(device), 1, 0);
 		}
 	}
 	
 	public boolean findBluetoothDevice(String deviceAddress) {
 		clientFound = false;
-		clientToSearchFor = deviceAddress;
 		
-		for (RemoteDevice device : allBluetoothClientsFound) {
-			if (device.getBluetoothAddress().equals(clientToSearchFor)) {
+		try {
+			RemoteDevice device = findDevice(deviceAddress, INQUIRY_TIMEOUT_MILLIS).get();
+			if (device != null) {
 				clientFound = true;
-				clientToSearchFor = "";
 				clientDevice = device;
-				
-				return clientFound;
 			}
+		} catch (ExecutionException e) {
+			logger.log("Device Search Failed: " + e.getCause());
+		} catch (InterruptedException e) {
+			logger.log("InterruptedException exception: " + e);
+			Thread.currentThread().interrupt();
 		}
 		
-		synchronized(deviceSearchCompletedEvent) {
-	        try {
-	            LocalDevice local = LocalDevice.getLocalDevice();
-	            local.setDiscoverable(DiscoveryAgent.GIAC);
-	            DiscoveryAgent discoveryAgent = local.getDiscoveryAgent();
-	            boolean startedInquiry = discoveryAgent.startInquiry(DiscoveryAgent.GIAC, new SearchDiscoveryListener());
-	            while (startedInquiry) {
-	                deviceSearchCompletedEvent.wait();
-	            }
-	        } catch (BluetoothStateException e) {
-			    logger.log("BluetoothStateException exception: " + e);
-			} catch (InterruptedException e) {
-			    logger.log("InterruptedException exception: " + e);
-			    Thread.currentThread().interrupt();
-	        }
-	        
-	        clientToSearchFor = "";
-			return clientFound;
-	    }
+		return clientFound;
 	}
 
 	public void searchClientForBluetoothService(String uuid) {
-		synchronized(serviceScanCompletedEvent){
-			try {
-				logger.log("Searching for UUID " + uuid);
-				UUID[] serviceUUID = new UUID[] {new UUID(uuid.replaceAll("-", ""), false)};
-				LocalDevice localDevice = LocalDevice.getLocalDevice();
-				DiscoveryAgent agent = localDevice.getDiscoveryAgent();
-				
-				agent.searchServices(null, serviceUUID, clientDevice, new ServiceDiscoveryListener());
-			} catch (BluetoothStateException e) {
-				logger.logException(e);
-			}
+		try {
+			bluetoothServicesFound.putAll(searchServices(uuid, clientDevice, SERVICE_SEARCH_TIMEOUT_MILLIS).get());
+		} catch (ExecutionException e) {
+			logger.log("Service Search Failed: " + e.getCause());
+		} catch (InterruptedException e) {
+			logger.log("InterruptedException exception: " + e);
+			Thread.currentThread().interrupt();
 		}
 		
 		logger.log(bluetoothServicesFound.size() + " total service(s) discovered");
@@ -139,132 +117,398 @@ public class VRHQBluetooth {
 		}
 	}
 	
-	public VRHQRequest startListeningBluetooth(String uuidString) {
-		VRHQRequest request = null;
+	//	Completes with every device seen by the inquiry, or a TimeoutException after timeoutMillis
+	public CompletableFuture<List<RemoteDevice>> discoverDevices(long timeoutMillis) {
+		InquiryListener inquiry;
+		try {
+			inquiry = startOrJoinInquiry();
+		} catch (BluetoothStateException e) {
+			return CompletableFuture.failedFuture(e);
+		}
+		
+		inquiry.fullScan = true;
+		return withTimeout(inquiry.devices.thenApply(devices -> devices), timeoutMillis, inquiry);
+	}
+	
+	//	Completes with the device as soon as it is seen, the inquiry is cancelled then unless
+	//	someone else wants the full scan. Completes with null when the inquiry ends without it
+	public CompletableFuture<RemoteDevice> findDevice(String deviceAddress, long timeoutMillis) {
+		RemoteDevice knownDevice = deviceRegistry.lookup(deviceAddress);
+		if (knownDevice != null) {
+			return CompletableFuture.completedFuture(knownDevice);
+		}
+		
+		InquiryListener inquiry;
+		try {
+			inquiry = startOrJoinInquiry();
+		} catch (BluetoothStateException e) {
+			return CompletableFuture.failedFuture(e);
+		}
+		
+		return withTimeout(inquiry.waitFor(deviceAddress).thenApply(device -> device), timeoutMillis, inquiry);
+	}
+	
+	//	Service name -> connection URL for every matching service on the device
+	public CompletableFuture<Map<String, String>> searchServices(String uuid, RemoteDevice device, long timeoutMillis) {
+		ServiceDiscoveryListener search = new ServiceDiscoveryListener();
+		
+		try {
+			logger.log("Searching for UUID " + uuid);
+			UUID[] serviceUUID = new UUID[] {new UUID(uuid.replaceAll("-", ""), false)};
+			DiscoveryAgent agent = LocalDevice.getLocalDevice().getDiscoveryAgent();
+			
+			int transID = agent.searchServices(null, serviceUUID, device, search);
+			return search.services.orTimeout(timeoutMillis, TimeUnit.MILLISECONDS).whenComplete((services, t) -> {
+				if (t != null) {
+					agent.cancelServiceSearch(transID);
+				}
+			});
+		} catch (BluetoothStateException e) {
+			return CompletableFuture.failedFuture(e);
+		}
+	}
+	
+	protected synchronized InquiryListener startOrJoinInquiry() throws BluetoothStateException {
+		InquiryListener inquiry = currentInquiry.get();
+		if (inquiry != null) {
+			return inquiry;
+		}
+		
+		LocalDevice local = LocalDevice.getLocalDevice();
+		local.setDiscoverable(DiscoveryAgent.GIAC);
+		inquiry = new InquiryListener(local.getDiscoveryAgent());
+		currentInquiry.set(inquiry);
+		
+		boolean startedInquiry;
+		try {
+			startedInquiry = inquiry.agent.startInquiry(DiscoveryAgent.GIAC, inquiry);
+		} catch (BluetoothStateException e) {
+			currentInquiry.compareAndSet(inquiry, null);
+			throw e;
+		}
+		
+		if (!startedInquiry) {
+			currentInquiry.compareAndSet(inquiry, null);
+			throw new BluetoothStateException("Inquiry Could Not Be Started");
+		}
+		
+		return inquiry;
+	}
+	
+	//	A caller that gives up also stops the radio, the other waiters get what was found so far
+	private <T> CompletableFuture<T> withTimeout(CompletableFuture<T> future, long timeoutMillis, InquiryListener inquiry) {
+		return future.orTimeout(timeoutMillis, TimeUnit.MILLISECONDS).whenComplete((result, t) -> {
+			if (t instanceof TimeoutException) {
+				inquiry.cancel();
+			}
+		});
+	}
+	
+	public void setDeviceRegistryTtl(long ttlMillis) {
+		deviceRegistry = new VRHQDeviceRegistry(ttlMillis);
+	}
+	
+	public VRHQDeviceRegistry getDeviceRegistry() {
+		return deviceRegistry;
+	}
+	
+	public void setFriendlyNameStaleness(long stalenessMillis) {
+		friendlyNames.setStaleness(stalenessMillis);
+	}
+	
+	public VRHQFriendlyNameCache getFriendlyNames() {
+		return friendlyNames;
+	}
+	
+	//	Told when a device shows up that the registry did not know, and when one expires from it
+	//	Called on the stack's discovery thread or the refresh thread, so listeners must not block
+	public interface DeviceListener {
+		void deviceFound(RemoteDevice device, String name);
+		
+		void deviceLost(RemoteDevice device, String name);
+	}
+	
+	public void addDeviceListener(DeviceListener listener) {
+		deviceListeners.add(listener);
+	}
+	
+	protected void fireDeviceFound(RemoteDevice device) {
+		for (DeviceListener listener : deviceListeners) {
+			listener.deviceFound(device, friendlyNames.getName(device));
+		}
+	}
+	
+	protected void fireDeviceLost(RemoteDevice device) {
+		for (DeviceListener listener : deviceListeners) {
+			listener.deviceLost(device, friendlyNames.getName(device));
+		}
+	}
+	
+	//	Keeps the registry warm so lookups on the request path never have to wait for an inquiry
+	public synchronized void startDeviceRefresh(long intervalMillis) {
+		if (intervalMillis <= 0 || deviceRefresher != null) {
+			return;
+		}
+		
+		deviceRefresher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "vrhq-bt-refresh");
+			thread.setDaemon(true);
+			return thread;
+		});
+		deviceRefresher.scheduleWithFixedDelay(this::refreshDevices, 0, intervalMillis, TimeUnit.MILLISECONDS);
+		logger.log("Bluetooth Device Refresh Every " + intervalMillis + "ms");
+	}
+	
+	public synchronized void stopDeviceRefresh() {
+		if (deviceRefresher == null) {
+			return;
+		}
+		
+		deviceRefresher.shutdownNow();
+		deviceRefresher = null;
+		
+		InquiryListener inquiry = currentInquiry.get();
+		if (inquiry != null) {
+			inquiry.cancel();
+		}
+	}
+	
+	protected void refreshDevices() {
+		for (RemoteDevice expired : deviceRegistry.expire()) {
+			logger.log("Device expired @ " + expired.getBluetoothAddress());
+			fireDeviceLost(expired);
+		}
+		
+		//	Skip this tick if an inquiry is already running, it feeds the registry anyway
+		if (currentInquiry.get() != null) {
+			return;
+		}
+		
+		try {
+			startOrJoinInquiry().fullScan = true;
+		} catch (BluetoothStateException e) {
+			logger.log("Background Inquiry Not Started: " + e.getMessage());
+		}
+	}
+	
+	//	The first call brings the local stack up, which is the slowest part of startup
+	public void initLocalDevice() throws BluetoothStateException {
+		LocalDevice.getLocalDevice().setDiscoverable(DiscoveryAgent.GIAC);
+	}
+	
+	//	Registers the service ahead of the first accept, a client can connect as soon as this returns
+	public void openService(String uuidString) throws IOException {
+		getNotifier(uuidString);
+	}
+	
+	public boolean hasNotifier(String uuidString) {
+		return notifiers.containsKey(uuidString);
+	}
+	
+	public StreamConnection startListeningBluetooth(String uuidString) {
+		requestLogger.debug("Waiting for clients to connect @ {}...", uuidString);
+		StreamConnection connection = getBluetoothConnection(uuidString);
 		
-        
-            logger.log("Waiting for clients to connect @ " + uuidString + "...");
-            StreamConnection connection = getBluetoothConnection(uuidString);
-            RemoteDevice dev;
-            BufferedReader bReader;
-            
+		if (connection != null) {
 			try {
-				dev = RemoteDevice.getRemoteDevice(connection);
-				logger.log("Got a connection from ["+dev.getFriendlyName(true)+"]");
-				InputStream inStream = connection.openInputStream();
-	            bReader = new BufferedReader(new InputStreamReader(inStream));
-	            String jsonReceived = bReader.readLine();
-	            logger.log("Received: " + jsonReceived);
-	            Gson gson = new Gson();
-	            request = gson.fromJson(jsonReceived, VRHQRequest.class);
-	            bReader.close();
-	            connection.close();
+				RemoteDevice dev = RemoteDevice.getRemoteDevice(connection);
+				if (deviceRegistry.seen(dev)) {
+					fireDeviceFound(dev);
+				}
+				requestLogger.info("Got a connection from [{}]", friendlyNames.describe(dev));
 			} 
 			catch (IOException e) {
-				logger.logException(e);
+				requestLogger.exception(e);
 			}
-            
-        
-        return request;
+		}
+		
+		return connection;
 	}
 	
-	public void sendResponse(String responseString, String uuidString) {
-		PrintWriter out = null;
-		
+	//	Null when the stack can not tell who is on the other end
+	public String getClientAddress(StreamConnection connection) {
 		try {
-			logger.log("Sending Response...");
-			out = new PrintWriter(getBluetoothConnection(uuidString).openOutputStream(), true);
-			out.write(responseString + "\n");
-			out.close();
-			logger.log("Response Sent!");
+			return RemoteDevice.getRemoteDevice(connection).getBluetoothAddress();
 		} catch (IOException e) {
-			logger.logException(e);
+			requestLogger.exception(e);
+			return null;
+		}
+	}
+	
+	//	"Name @ ADDRESS" for the device on the other end of the connection
+	public String describeClient(StreamConnection connection) {
+		try {
+			return friendlyNames.describe(RemoteDevice.getRemoteDevice(connection));
+		} catch (IOException e) {
+			return "Unknown Device";
+		}
+	}
+	
+	public VRHQRequestFrame readRequest(VRHQFrameDecoder in) throws IOException {
+		VRHQRequestFrame frame = in.read();
+		if (frame != null) {
+			requestLogger.debug("Received: {}", frame.getRequest());
+		}
+		return frame;
+	}
+	
+	public void sendResponse(String responseString, VRHQFrameEncoder out) {
+		requestLogger.debug("Sending Response...");
+		long start = System.nanoTime();
+		out.writeText(responseString);
+		VRHQMetrics.getMetrics().recordStage(VRHQMetrics.STAGE_RESPOND, start);
+		
+		if (out.checkError()) {
+			requestLogger.info("Response Could Not Be Sent");
+		}
+		else {
+			requestLogger.debug("Response Sent!");
 		}
 	}
 	
 	public StreamConnection getBluetoothConnection(String uuidString) {
-		UUID uuid = new UUID(uuidString.replaceAll("-", ""), false);
-		final String url  =  "btspp://localhost:" + uuid  + ";name=" + Constants.SERVER_NAME + ";authenticate=false;encrypt=false;";
-
-		RemoteDevice device = null;
 		StreamConnection connection = null;
-		StreamConnectionNotifier streamConnNotifier = null;
 		try {
-			LocalDevice.getLocalDevice().setDiscoverable(DiscoveryAgent.GIAC);
-			logger.log("Opening URL @ " + url);
-			streamConnNotifier = (StreamConnectionNotifier) Connector.open(url);
-			logger.log("Now Accepting and Opening Connections");
+			StreamConnectionNotifier streamConnNotifier = getNotifier(uuidString);
+			requestLogger.debug("Now Accepting and Opening Connections");
+			long start = System.nanoTime();
 	        connection = streamConnNotifier.acceptAndOpen();
-	        logger.log("Connection Accepted and Opened");
-	        device = RemoteDevice.getRemoteDevice(connection);
-            logger.log("Connecting to ["+device.getFriendlyName(true)+"]");
+	        VRHQMetrics.getMetrics().recordStage(VRHQMetrics.STAGE_ACCEPT, start);
+	        requestLogger.debug("Connection Accepted and Opened");
 		} catch (IOException e) {
 			logger.logException(e);
+			closeNotifier(uuidString);
 		}
 		
 		return connection;
 	}
 	
-	class ScanDiscoveryListener implements DiscoveryListener {
+	protected synchronized StreamConnectionNotifier getNotifier(String uuidString) throws IOException {
+		StreamConnectionNotifier streamConnNotifier = notifiers.get(uuidString);
+		if (streamConnNotifier != null) {
+			return streamConnNotifier;
+		}
 		
-		@Override
-	    public void deviceDiscovered(RemoteDevice device, DeviceClass cod) {
-	    	String address = device.getBluetoothAddress();
-	    	logger.log("Device found @ " + address);
-	    	currentScannedDevices.add(device);
-	    	
-			//if (!allBluetoothClientsFound.contains(address)) {
-			//	allBluetoothClientsFound.add(device);
-			//}
-	    }
+		UUID uuid = new UUID(uuidString.replaceAll("-", ""), false);
+		final String url  =  "btspp://localhost:" + uuid  + ";name=" + Constants.SERVER_NAME + ";authenticate=false;encrypt=false;";
+		
+		LocalDevice.getLocalDevice().setDiscoverable(DiscoveryAgent.GIAC);
+		logger.log("Opening URL @ " + url);
+		streamConnNotifier = (StreamConnectionNotifier) Connector.open(url);
+		notifiers.put(uuidString, streamConnNotifier);
+		
+		return streamConnNotifier;
+	}
 	
-		@Override
-	    public void inquiryCompleted(int discType) {
-	    	logger.log("Device Scan Complete");
-	        synchronized(deviceScanCompletedEvent) {
-	            deviceScanCompletedEvent.notifyAll();
-	        }
-	    }
+	//	A failed accept usually means the stack dropped the service record, so the next accept reopens it
+	public synchronized void closeNotifier(String uuidString) {
+		StreamConnectionNotifier streamConnNotifier = notifiers.remove(uuidString);
+		if (streamConnNotifier != null) {
+			try {
+				streamConnNotifier.close();
+			} catch (IOException e) {
+				logger.logException(e);
+			} catch (RuntimeException e) {
+				//	BlueCove's own shutdown hook may already have torn the stack down underneath the notifier
+				logger.log("Notifier Already Closed By The Stack: " + e);
+			}
+		}
+	}
 	
-		@Override
-	    public void serviceSearchCompleted(int transID, int respCode) {}
-		
-		@Override
-	    public void servicesDiscovered(int transID, ServiceRecord[] servRecord) {}    
+	public void shutdown() {
+		stopDeviceRefresh();
+		closeNotifiers();
+		friendlyNames.shutdown();
 	}
 	
-	class SearchDiscoveryListener implements DiscoveryListener {
+	public synchronized void closeNotifiers() {
+		for (String uuidString : new ArrayList<>(notifiers.keySet())) {
+			closeNotifier(uuidString);
+		}
+	}
+	
+	class InquiryListener implements DiscoveryListener {
+		
+		final DiscoveryAgent agent;
+		final List<RemoteDevice> found = new CopyOnWriteArrayList<>();
+		final CompletableFuture<List<RemoteDevice>> devices = new CompletableFuture<>();
+		final Map<String, CompletableFuture<RemoteDevice>> targets = new ConcurrentHashMap<>();
+		
+		//	Set when someone wants the whole inquiry, otherwise it stops once every target is found
+		volatile boolean fullScan = false;
+		
+		InquiryListener(DiscoveryAgent agent) {
+			this.agent = agent;
+		}
+		
+		CompletableFuture<RemoteDevice> waitFor(String deviceAddress) {
+			String address = VRHQDeviceRegistry.normalize(deviceAddress);
+			CompletableFuture<RemoteDevice> target = targets.computeIfAbsent(address, key -> new CompletableFuture<>());
+			
+			//	The device may have shown up before we registered, or the inquiry may already be over
+			for (RemoteDevice device : found) {
+				if (device.getBluetoothAddress().equals(address)) {
+					targets.remove(address);
+					target.complete(device);
+				}
+			}
+			if (devices.isDone()) {
+				targets.remove(address);
+				target.complete(null);
+			}
+			
+			return target;
+		}
+		
+		void cancel() {
+			agent.cancelInquiry(this);
+		}
 		
 		@Override
 	    public void deviceDiscovered(RemoteDevice device, DeviceClass cod) {
 	    	String address = device.getBluetoothAddress();
-	        
-        	if (address.equals(clientToSearchFor)) {
-				clientFound = true;
-				clientDevice = device;
-			}
-			
-			//if (!allBluetoothClientsFound.contains(address)) {
-			//	allBluetoothClientsFound.add(device);
-			//}
+	    	found.add(device);
+	    	if (deviceRegistry.seen(device)) {
+	    		logger.log("Device found @ " + address);
+	    		friendlyNames.refresh(device);
+	    		fireDeviceFound(device);
+	    	}
+	    	
+	    	CompletableFuture<RemoteDevice> target = targets.remove(address);
+	    	if (target != null) {
+	    		target.complete(device);
+	    		if (!fullScan && targets.isEmpty()) {
+	    			logger.log("Device @ " + address + " found, cancelling inquiry");
+	    			cancel();
+	    		}
+	    	}
 	    }
 	
 		@Override
 	    public void inquiryCompleted(int discType) {
-	    	logger.log("Device Search Complete");
-	        synchronized(deviceSearchCompletedEvent) {
-	            deviceSearchCompletedEvent.notifyAll();
-	        }
+	    	logger.log("Device Inquiry Complete (" + discType + ")");
+	    	currentInquiry.compareAndSet(this, null);
+	    	devices.complete(new ArrayList<>(found));
+	    	
+	    	for (String address : targets.keySet()) {
+	    		CompletableFuture<RemoteDevice> target = targets.remove(address);
+	    		if (target != null) {
+	    			target.complete(null);
+	    		}
+	    	}
 	    }
 	
 		@Override
 	    public void serviceSearchCompleted(int transID, int respCode) {}
-	
+		
 		@Override
 	    public void servicesDiscovered(int transID, ServiceRecord[] servRecord) {}    
 	}
 	
 	class ServiceDiscoveryListener implements DiscoveryListener {
+		
+		final Map<String, String> found = new ConcurrentHashMap<>();
+		final CompletableFuture<Map<String, String>> services = new CompletableFuture<>();
 
 		@Override
 		public void inquiryCompleted(int arg0) {}
@@ -274,9 +518,7 @@ public class VRHQBluetooth {
 
 		@Override
 		public void serviceSearchCompleted(int arg0, int arg1) {
-			synchronized (serviceScanCompletedEvent) {
-				serviceScanCompletedEvent.notifyAll();
-			}
+			services.complete(new HashMap<>(found));
 		}
 
 		@Override
@@ -291,7 +533,7 @@ public class VRHQBluetooth {
 				DataElement serviceName = services[i].getAttributeValue(0x0100);
 				if (serviceName != null) {
 					logger.log("Discovered Service [" + serviceName.getValue() + "] @ " + url);
-					bluetoothServicesFound.put(serviceName.getValue().toString(), url);
+					found.put(serviceName.getValue().toString(), url);
 				} 
 				else {
 					logger.log("Discovered Unknown Service @ " + url);
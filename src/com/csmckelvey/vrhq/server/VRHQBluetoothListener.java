@@ -0,0 +1,197 @@
+package com.csmckelvey.vrhq.server;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.microedition.io.StreamConnection;
+
+import com.csmckelvey.vrhq.core.VRHQLogger;
+import com.intel.bluetooth.BlueCoveImpl;
+
+//	Accepts RFCOMM connections on one service and serves each on its own thread
+//	so a phone running a traceroute no longer keeps a second phone from connecting
+public class VRHQBluetoothListener implements Runnable {
+
+	//	How long to wait before reopening the service after the stack failed an accept
+	private static final long ACCEPT_RETRY_MILLIS = 1000;
+	
+	private final VRHQBluetooth bluetooth;
+	private final String uuid;
+	private final Semaphore sessionPermits;
+	private final SessionHandler handler;
+	private final ExecutorService workers;
+	private final ExecutorService watchers;
+	private final Map<Integer, VRHQBluetoothSession> sessions = new ConcurrentHashMap<>();
+	private final AtomicInteger nextId = new AtomicInteger();
+	
+	private volatile boolean running = false;
+	private volatile Thread acceptThread = null;
+	
+	private static VRHQLogger logger = null;
+	
+	private static VRHQServerLogger requestLogger = VRHQServerLogger.getLogger();
+	
+	static {
+		logger = VRHQLogger.getLogger();
+	}
+	
+	//	Serves one session until the client disconnects, the listener closes the connection afterwards
+	public interface SessionHandler {
+		void handleSession(VRHQBluetoothSession session) throws IOException;
+	}
+	
+	public VRHQBluetoothListener(VRHQBluetooth bluetooth, String uuid, int maxSessions, SessionHandler handler) {
+		this.bluetooth = bluetooth;
+		this.uuid = uuid;
+		this.handler = handler;
+		this.sessionPermits = new Semaphore(maxSessions);
+		
+		//	BlueCove reads block in native code and would pin the carrier of a virtual thread, an idle phone would hold one
+		//	for as long as it stays connected, so sessions and their cancel watchers get platform threads
+		//	The permits already bound the sessions, each one reads with at most one watcher at a time
+		this.workers = platformPool(maxSessions, "vrhq-bt-");
+		this.watchers = platformPool(maxSessions, "vrhq-bt-cancel-");
+	}
+	
+	//	Threads go away once idle so a server nobody connects to holds none
+	private static ExecutorService platformPool(int size, String name) {
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(size, size, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), 
+				Thread.ofPlatform().daemon().name(name, 0).factory());
+		pool.allowCoreThreadTimeOut(true);
+		return pool;
+	}
+	
+	public void start() {
+		new Thread(this, "vrhq-bt-accept").start();
+	}
+	
+	//	Runs the accept loop on the calling thread until shutdown
+	@Override
+	public void run() {
+		running = true;
+		acceptThread = Thread.currentThread();
+		logger.log("Bluetooth Listener Started @ " + uuid, 0, 0, true);
+		
+		//	When BlueCove runs several stacks (the emulator) each thread is bound to one, the workers join ours
+		Object stack = BlueCoveImpl.getCurrentThreadBluetoothStackID();
+		
+		try {
+			while (running) {
+				//	Take the permit before accepting so a client past the cap waits in the stack instead of on a thread
+				sessionPermits.acquire();
+				StreamConnection connection = bluetooth.startListeningBluetooth(uuid);
+				if (connection == null) {
+					sessionPermits.release();
+					if (running) {
+						Thread.sleep(ACCEPT_RETRY_MILLIS);
+					}
+					continue;
+				}
+				
+				VRHQBluetoothSession session = new VRHQBluetoothSession(nextId.incrementAndGet(), connection,
+						bluetooth.getClientAddress(connection), bluetooth.describeClient(connection));
+				sessions.put(session.getId(), session);
+				if (!running) {
+					close(session);
+					break;
+				}
+				
+				try {
+					workers.execute(() -> serve(session, stack));
+				} catch (RuntimeException e) {
+					close(session);
+					throw e;
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			running = false;
+		}
+		
+		logger.log("Bluetooth Listener Stopped", 0, 0, true);
+	}
+	
+	private void serve(VRHQBluetoothSession session, Object stack) {
+		if (stack != null) {
+			BlueCoveImpl.setThreadBluetoothStackID(stack);
+		}
+		
+		requestLogger.info("Bluetooth Session {} Opened ({} Active)", session, sessions.size());
+		try {
+			handler.handleSession(session);
+		} catch (IOException e) {
+			if (running) {
+				requestLogger.info("Bluetooth Session {} Dropped: {}", session, e.getMessage());
+			}
+		} catch (RuntimeException e) {
+			requestLogger.exception(e);
+		} finally {
+			close(session);
+		}
+	}
+	
+	//	Only the first close of a session releases its permit
+	private void close(VRHQBluetoothSession session) {
+		if (sessions.remove(session.getId()) == null) {
+			return;
+		}
+		
+		session.close();
+		sessionPermits.release();
+		requestLogger.info("Bluetooth Session {} Closed After {}ms, {} Requests", session,
+				System.currentTimeMillis() - session.getOpenedAt(), session.getRequests());
+	}
+	
+	public void shutdown() {
+		logger.log("Stopping Bluetooth Listener...", 0, 0, true);
+		running = false;
+		
+		//	Closing the notifier unblocks the accept, closing the sessions unblocks any worker still waiting on a read
+		//	The accept thread may instead be waiting for a session permit
+		bluetooth.closeNotifier(uuid);
+		Thread accepting = acceptThread;
+		if (accepting != null) {
+			accepting.interrupt();
+		}
+		for (VRHQBluetoothSession session : sessions.values()) {
+			session.close();
+		}
+		
+		workers.shutdown();
+		try {
+			if (!workers.awaitTermination(5, TimeUnit.SECONDS)) {
+				workers.shutdownNow();
+			}
+		} catch (InterruptedException e) {
+			workers.shutdownNow();
+			Thread.currentThread().interrupt();
+		}
+		watchers.shutdownNow();
+	}
+	
+	public boolean isRunning() {
+		return running;
+	}
+	
+	public int getActiveSessions() {
+		return sessions.size();
+	}
+	
+	public Collection<VRHQBluetoothSession> getSessions() {
+		return sessions.values();
+	}
+	
+	//	Where a session's cancel watcher reads, off the virtual threads like the session itself
+	public ExecutorService getWatchers() {
+		return watchers;
+	}
+}
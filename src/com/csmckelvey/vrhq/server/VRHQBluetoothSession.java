@@ -0,0 +1,82 @@
+package com.csmckelvey.vrhq.server;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.microedition.io.StreamConnection;
+
+//	One RFCOMM link and what we know about the device on the other end, for as long as it stays connected
+public class VRHQBluetoothSession {
+
+	private final int id;
+	private final StreamConnection connection;
+	private final String address;
+	private final String description;
+	private final long openedAt = System.currentTimeMillis();
+	private final AtomicLong requests = new AtomicLong();
+	private volatile long lastActivity = openedAt;
+	private volatile boolean binary = false;
+	
+	public VRHQBluetoothSession(int id, StreamConnection connection, String address, String description) {
+		this.id = id;
+		this.connection = connection;
+		this.address = address;
+		this.description = description;
+	}
+	
+	public void countRequest() {
+		requests.incrementAndGet();
+		lastActivity = System.currentTimeMillis();
+	}
+	
+	public void setBinary(boolean binary) {
+		this.binary = binary;
+	}
+	
+	//	Closing the connection unblocks a worker that is waiting on a read
+	public void close() {
+		try {
+			connection.close();
+		} catch (IOException e) {
+			//	The link is already gone
+		}
+	}
+	
+	public int getId() {
+		return id;
+	}
+	
+	public StreamConnection getConnection() {
+		return connection;
+	}
+	
+	//	Null when the stack could not tell who connected
+	public String getAddress() {
+		return address;
+	}
+	
+	public String getDescription() {
+		return description;
+	}
+	
+	public long getOpenedAt() {
+		return openedAt;
+	}
+	
+	public long getRequests() {
+		return requests.get();
+	}
+	
+	public long getLastActivity() {
+		return lastActivity;
+	}
+	
+	public boolean isBinary() {
+		return binary;
+	}
+	
+	@Override
+	public String toString() {
+		return "#" + id + " " + description;
+	}
+}
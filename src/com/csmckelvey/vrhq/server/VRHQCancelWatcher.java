@@ -0,0 +1,83 @@
+package com.csmckelvey.vrhq.server;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.google.gson.JsonParseException;
+
+//	Reads the rest of a connection while its one request runs so the client can cancel it with a cancel frame
+//	The serving thread is interrupted, which kills the command it is waiting on
+//	End of input is only a cancel for a subscription, other clients may half close once the request is sent,
+//	but a subscription parks until something is pushed and would hold its connection long after the client left
+public class VRHQCancelWatcher {
+
+	private final VRHQFrameDecoder in;
+	private final VRHQFrameEncoder out;
+	private final boolean cancelOnClose;
+	private final Future<?> watcher;
+	
+	//	Guarded by the encoder's lock, null once the request has finished
+	private Thread serving;
+	
+	//	Socket reads park a virtual thread without pinning it, so TCP watchers get one each
+	private static final ExecutorService VIRTUAL_WATCHERS = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("vrhq-cancel-", 0).factory());
+	
+	private static VRHQServerLogger requestLogger = VRHQServerLogger.getLogger();
+	
+	//	Watches on behalf of the calling thread
+	public VRHQCancelWatcher(VRHQFrameDecoder in, VRHQFrameEncoder out, boolean cancelOnClose) {
+		this(in, out, cancelOnClose, VIRTUAL_WATCHERS);
+	}
+	
+	//	Watches on one of the given threads, for inputs whose reads block in native code
+	public VRHQCancelWatcher(VRHQFrameDecoder in, VRHQFrameEncoder out, boolean cancelOnClose, ExecutorService watchers) {
+		this.in = in;
+		this.out = out;
+		this.cancelOnClose = cancelOnClose;
+		this.serving = Thread.currentThread();
+		this.watcher = watchers.submit(this::watch);
+	}
+	
+	private void watch() {
+		try {
+			VRHQRequestFrame frame;
+			while ((frame = in.read()) != null) {
+				if (frame.isCancel()) {
+					requestLogger.info("Request Cancelled By Client");
+					cancel();
+					return;
+				}
+			}
+			
+			if (cancelOnClose) {
+				requestLogger.info("Subscriber Closed The Connection");
+				cancel();
+			}
+		} catch (IOException | JsonParseException e) {
+			//	The client went away, or the request finished and the connection was closed under us
+			if (cancelOnClose) {
+				cancel();
+			}
+		}
+	}
+	
+	//	Never part way through a write, see VRHQInterruptSafeOutputStream
+	private void cancel() {
+		synchronized (out) {
+			if (serving != null) {
+				serving.interrupt();
+			}
+		}
+	}
+	
+	//	Called on the serving thread once its response is written, no cancel reaches it after this
+	public void stop() {
+		synchronized (out) {
+			serving = null;
+		}
+		watcher.cancel(true);
+		Thread.interrupted();
+	}
+}
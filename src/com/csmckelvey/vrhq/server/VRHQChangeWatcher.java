@@ -0,0 +1,365 @@
+package com.csmckelvey.vrhq.server;
+
+import java.io.IOException;
+import java.net.NetworkInterface;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.bluetooth.RemoteDevice;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+//	Pushes interface and Bluetooth device changes to subscribed clients instead of having them poll
+//	A subscriber first gets the current state as added events, then only what changed since its last push
+//	Changes that land within the coalescing window go out together, and repeated changes to one thing collapse into the latest
+public class VRHQChangeWatcher implements VRHQBluetooth.DeviceListener {
+
+	public static final String TOPIC_NETWORK = "network";
+	public static final String TOPIC_BLUETOOTH = "bluetooth";
+	
+	public static final String ADDED = "added";
+	public static final String CHANGED = "changed";
+	public static final String REMOVED = "removed";
+	
+	private final long coalesceMillis;
+	private final long networkPollMillis;
+	private final int maxSubscribers;
+	private final VRHQNetworkInfo networkInfo = new VRHQNetworkInfo();
+	private final Set<Subscriber> subscribers = ConcurrentHashMap.newKeySet();
+	
+	//	Interface name -> its last description, only kept while someone is subscribed to the network
+	private final Map<String, JsonObject> interfaces = new HashMap<>();
+	private final Map<String, JsonObject> devices = new ConcurrentHashMap<>();
+	
+	private ScheduledExecutorService networkPoller = null;
+	private ScheduledFuture<?> networkPoll = null;
+	private volatile boolean closed = false;
+	
+	private static final Gson gson = new Gson();
+	
+	private static VRHQServerLogger requestLogger = VRHQServerLogger.getLogger();
+	
+	class Subscriber {
+		
+		final boolean network;
+		final boolean bluetooth;
+		final ReentrantLock lock = new ReentrantLock();
+		final Condition changed = lock.newCondition();
+		final Map<String, JsonObject> pending = new LinkedHashMap<>();
+		
+		Subscriber(boolean network, boolean bluetooth) {
+			this.network = network;
+			this.bluetooth = bluetooth;
+		}
+		
+		boolean wants(String topic) {
+			return TOPIC_NETWORK.equals(topic) ? network : bluetooth;
+		}
+		
+		//	Merges the event into whatever has not been pushed yet for the same key
+		//	Something that came and went before the client heard about it is never sent at all
+		void offer(String key, JsonObject event) {
+			lock.lock();
+			try {
+				JsonObject previous = pending.get(key);
+				String kind = event.get("event").getAsString();
+				String previousKind = previous == null ? null : previous.get("event").getAsString();
+				
+				if (ADDED.equals(previousKind) && REMOVED.equals(kind)) {
+					pending.remove(key);
+				}
+				else if (ADDED.equals(previousKind) || (REMOVED.equals(previousKind) && ADDED.equals(kind))) {
+					JsonObject merged = new JsonObject();
+					for (Map.Entry<String, JsonElement> property : event.entrySet()) {
+						merged.add(property.getKey(), property.getValue());
+					}
+					merged.addProperty("event", ADDED.equals(previousKind) ? ADDED : CHANGED);
+					pending.put(key, merged);
+				}
+				else {
+					pending.put(key, event);
+				}
+				changed.signal();
+			} finally {
+				lock.unlock();
+			}
+		}
+		
+		//	Waits for the first change, gives the rest of the window a chance to arrive, then takes them all
+		List<JsonObject> take() throws InterruptedException {
+			lock.lock();
+			try {
+				while (pending.isEmpty() && !closed) {
+					changed.await();
+				}
+				if (closed) {
+					return null;
+				}
+				
+				long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(coalesceMillis);
+				long remaining;
+				while (!closed && (remaining = deadline - System.nanoTime()) > 0) {
+					changed.awaitNanos(remaining);
+				}
+				
+				List<JsonObject> events = new ArrayList<>(pending.values());
+				pending.clear();
+				return events;
+			} finally {
+				lock.unlock();
+			}
+		}
+		
+		void wake() {
+			lock.lock();
+			try {
+				changed.signalAll();
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+	
+	public VRHQChangeWatcher(long coalesceMillis, long networkPollMillis, int maxSubscribers) {
+		this.coalesceMillis = coalesceMillis;
+		this.networkPollMillis = networkPollMillis;
+		this.maxSubscribers = maxSubscribers;
+	}
+	
+	//	Blocks the calling thread for the life of the subscription, each push is one line holding every event since the last
+	//	Ends when the thread is interrupted (the client cancelled), a push can not be written, or the server shuts down
+	public void subscribe(String topics, VRHQOutputHandler handler) {
+		Subscriber subscriber = newSubscriber(topics);
+		if (subscriber == null) {
+			requestLogger.info("Invalid Subscription [{}]", topics);
+			handler.onOutput("Invalid Request");
+			handler.onComplete(-1);
+			return;
+		}
+		
+		if (!register(subscriber)) {
+			requestLogger.info("Subscription Refused, {} Subscribers Already", maxSubscribers);
+			handler.onOutput("Server Busy");
+			handler.onComplete(-1);
+			return;
+		}
+		
+		requestLogger.info("Subscribed To{}{} ({} Subscribers)", subscriber.network ? " " + TOPIC_NETWORK : "",
+				subscriber.bluetooth ? " " + TOPIC_BLUETOOTH : "", subscribers.size());
+		int exitCode = 0;
+		try {
+			List<JsonObject> events;
+			while ((events = subscriber.take()) != null) {
+				handler.onOutput(gson.toJson(batch(events)));
+				if (handler.checkError()) {
+					requestLogger.info("Subscriber Went Away");
+					exitCode = -1;
+					break;
+				}
+			}
+		} catch (InterruptedException e) {
+			requestLogger.info("Subscription Cancelled By Client");
+			exitCode = -1;
+			Thread.currentThread().interrupt();
+		} finally {
+			unregister(subscriber);
+		}
+		handler.onComplete(exitCode);
+	}
+	
+	//	Blank means every topic, otherwise a comma separated list
+	private Subscriber newSubscriber(String topics) {
+		if (topics == null || topics.isBlank()) {
+			return new Subscriber(true, true);
+		}
+		
+		boolean network = false;
+		boolean bluetooth = false;
+		for (String topic : topics.split(",")) {
+			topic = topic.trim().toLowerCase();
+			if (TOPIC_NETWORK.equals(topic)) {
+				network = true;
+			}
+			else if (TOPIC_BLUETOOTH.equals(topic)) {
+				bluetooth = true;
+			}
+			else {
+				return null;
+			}
+		}
+		return new Subscriber(network, bluetooth);
+	}
+	
+	//	The current state goes to the new subscriber first so it has something to apply the deltas to
+	private synchronized boolean register(Subscriber subscriber) {
+		if (closed || subscribers.size() >= maxSubscribers) {
+			return false;
+		}
+		
+		//	Added before the snapshot is taken so a device found meanwhile is at worst sent twice, never missed
+		subscribers.add(subscriber);
+		
+		if (subscriber.network) {
+			if (networkPoll == null) {
+				startNetworkPoll();
+			}
+			for (Map.Entry<String, JsonObject> entry : interfaces.entrySet()) {
+				subscriber.offer(TOPIC_NETWORK + ":" + entry.getKey(), interfaceEvent(ADDED, entry.getValue()));
+			}
+		}
+		if (subscriber.bluetooth) {
+			for (Map.Entry<String, JsonObject> entry : devices.entrySet()) {
+				subscriber.offer(TOPIC_BLUETOOTH + ":" + entry.getKey(), entry.getValue());
+			}
+		}
+		
+		return true;
+	}
+	
+	//	Nobody left watching the network means nothing left polling it
+	private synchronized void unregister(Subscriber subscriber) {
+		subscribers.remove(subscriber);
+		requestLogger.info("Unsubscribed ({} Subscribers)", subscribers.size());
+		
+		for (Subscriber remaining : subscribers) {
+			if (remaining.network) {
+				return;
+			}
+		}
+		stopNetworkPoll();
+	}
+	
+	private void startNetworkPoll() {
+		if (networkPoller == null) {
+			networkPoller = Executors.newSingleThreadScheduledExecutor(runnable -> {
+				Thread thread = new Thread(runnable, "vrhq-net-watch");
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+		
+		//	The first poll runs now so the new subscriber's snapshot is current
+		pollNetwork();
+		networkPoll = networkPoller.scheduleWithFixedDelay(this::pollNetwork, networkPollMillis, networkPollMillis, TimeUnit.MILLISECONDS);
+	}
+	
+	private void stopNetworkPoll() {
+		if (networkPoll != null) {
+			networkPoll.cancel(false);
+			networkPoll = null;
+			interfaces.clear();
+		}
+	}
+	
+	//	The JVM has no way to hear about link changes, so the interfaces are compared against the last poll
+	//	Counters are left out, they change all the time and are what STATUS is for
+	synchronized void pollNetwork() {
+		Map<String, JsonObject> current = new HashMap<>();
+		try {
+			for (NetworkInterface networkInterface : Collections.list(NetworkInterface.getNetworkInterfaces())) {
+				current.put(networkInterface.getName(), networkInfo.describe(networkInterface, null));
+			}
+		} catch (IOException e) {
+			requestLogger.exception(e);
+			return;
+		}
+		
+		for (Map.Entry<String, JsonObject> entry : current.entrySet()) {
+			JsonObject previous = interfaces.put(entry.getKey(), entry.getValue());
+			if (previous == null) {
+				publish(TOPIC_NETWORK, entry.getKey(), interfaceEvent(ADDED, entry.getValue()));
+			}
+			else if (!previous.equals(entry.getValue())) {
+				publish(TOPIC_NETWORK, entry.getKey(), interfaceEvent(CHANGED, entry.getValue()));
+			}
+		}
+		
+		for (String name : new ArrayList<>(interfaces.keySet())) {
+			if (!current.containsKey(name)) {
+				publish(TOPIC_NETWORK, name, interfaceEvent(REMOVED, interfaces.remove(name)));
+			}
+		}
+	}
+	
+	@Override
+	public void deviceFound(RemoteDevice device, String name) {
+		JsonObject event = deviceEvent(ADDED, device, name);
+		devices.put(device.getBluetoothAddress(), event);
+		publish(TOPIC_BLUETOOTH, device.getBluetoothAddress(), event);
+	}
+	
+	@Override
+	public void deviceLost(RemoteDevice device, String name) {
+		devices.remove(device.getBluetoothAddress());
+		publish(TOPIC_BLUETOOTH, device.getBluetoothAddress(), deviceEvent(REMOVED, device, name));
+	}
+	
+	//	Only queues the event, every subscriber writes on its own thread so a slow client never holds up the others
+	private void publish(String topic, String key, JsonObject event) {
+		for (Subscriber subscriber : subscribers) {
+			if (subscriber.wants(topic)) {
+				subscriber.offer(topic + ":" + key, event);
+			}
+		}
+	}
+	
+	private static JsonObject interfaceEvent(String kind, JsonObject description) {
+		JsonObject event = new JsonObject();
+		event.addProperty("topic", TOPIC_NETWORK);
+		event.addProperty("event", kind);
+		event.add("interface", description);
+		return event;
+	}
+	
+	private static JsonObject deviceEvent(String kind, RemoteDevice device, String name) {
+		JsonObject event = new JsonObject();
+		event.addProperty("topic", TOPIC_BLUETOOTH);
+		event.addProperty("event", kind);
+		event.addProperty("address", device.getBluetoothAddress());
+		event.addProperty("name", name);
+		return event;
+	}
+	
+	private static JsonObject batch(List<JsonObject> events) {
+		JsonArray array = new JsonArray();
+		for (JsonObject event : events) {
+			array.add(event);
+		}
+		
+		JsonObject batch = new JsonObject();
+		batch.addProperty("timestamp", System.currentTimeMillis());
+		batch.add("events", array);
+		return batch;
+	}
+	
+	public int getSubscriberCount() {
+		return subscribers.size();
+	}
+	
+	//	Subscribers finish their current push and complete normally
+	public synchronized void shutdown() {
+		closed = true;
+		for (Subscriber subscriber : subscribers) {
+			subscriber.wake();
+		}
+		stopNetworkPoll();
+		if (networkPoller != null) {
+			networkPoller.shutdownNow();
+		}
+	}
+}
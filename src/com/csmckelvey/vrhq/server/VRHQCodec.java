@@ -0,0 +1,237 @@
+package com.csmckelvey.vrhq.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.csmckelvey.vrhq.core.VRHQRequest;
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.TypeAdapter;
+
+//	Request / response framing shared by the TCP and Bluetooth transports
+//	Gson and its adapters are thread safe so one set serves every connection,
+//	each connection gets its own decoder and encoder with buffers that are reused
+//
+//	JSON mode, the default, is one JSON object per line
+//	A request that carries an "id" is pipelined, its response comes back as chunk / end frames with the same id
+//	and may overtake responses to earlier requests. {"id":"b","batch":[{...},{...}]} carries several requests at once,
+//	a batch entry without an id gets "b.0", "b.1" ... Cancelling a pipelined request is {"id":"7","cancel":true}
+//
+//	Binary mode is for the Bluetooth link and is chosen by the client with a hello before its first request
+//		hello    	B1 'V' 'R' 'Q' version flags		flags bit 0 = client can inflate responses
+//		reply    	B1 'V' 'R' 'Q' version flags		the flags the server agreed to, version 0 when it refused
+//	A hello with a version the server does not speak is refused and the connection carries on in JSON mode
+//		request  	varint length | varint zigzag(command) | flags | [varint id] | UTF-8 message
+//		response 	varint length | type | flags | [varint id] | payload
+//	Request flags are stream, refresh, cancel and has id, response flags are deflated and has id
+//	Response types are text (a buffered response), chunk and end, the end payload is varint zigzag(exitCode)
+public class VRHQCodec {
+	
+	public static final int DEFAULT_MAX_FRAME_SIZE = 64 * 1024;
+	public static final int DEFAULT_COMPRESSION_THRESHOLD = 512;
+	
+	public static final int BINARY_VERSION = 1;
+	public static final byte[] BINARY_MAGIC = { (byte) 0xB1, 'V', 'R', 'Q' };
+	public static final int HELLO_DEFLATE = 0x01;
+	
+	public static final int REQUEST_STREAM = 0x01;
+	public static final int REQUEST_REFRESH = 0x02;
+	public static final int REQUEST_CANCEL = 0x04;
+	public static final int REQUEST_ID = 0x08;
+	
+	public static final int RESPONSE_TEXT = 0;
+	public static final int RESPONSE_CHUNK = 1;
+	public static final int RESPONSE_END = 2;
+	public static final int RESPONSE_DEFLATED = 0x01;
+	public static final int RESPONSE_ID = 0x02;
+	
+	static final Gson gson = new Gson();
+	static final TypeAdapter<VRHQRequest> requestAdapter = gson.getAdapter(VRHQRequest.class);
+	static final TypeAdapter<Options> optionsAdapter = gson.getAdapter(Options.class);
+	
+	private final int maxFrameSize;
+	private final int compressionThreshold;
+	
+	private static VRHQServerLogger requestLogger = VRHQServerLogger.getLogger();
+	
+	//	Transport options that travel next to the VRHQRequest fields in the same object
+	static class Options {
+		boolean stream;
+		boolean refresh;
+		boolean cancel;
+		String id;
+		JsonArray batch;
+	}
+	
+	//	The decoder and encoder agreed for one connection
+	public static class Session {
+		private final VRHQFrameDecoder decoder;
+		private final VRHQFrameEncoder encoder;
+		private final boolean binary;
+		
+		Session(VRHQFrameDecoder decoder, VRHQFrameEncoder encoder, boolean binary) {
+			this.decoder = decoder;
+			this.encoder = encoder;
+			this.binary = binary;
+		}
+		
+		public VRHQFrameDecoder getDecoder() {
+			return decoder;
+		}
+		
+		public VRHQFrameEncoder getEncoder() {
+			return encoder;
+		}
+		
+		public boolean isBinary() {
+			return binary;
+		}
+	}
+	
+	public VRHQCodec() {
+		this(DEFAULT_MAX_FRAME_SIZE, DEFAULT_COMPRESSION_THRESHOLD);
+	}
+	
+	public VRHQCodec(int maxFrameSize, int compressionThreshold) {
+		this.maxFrameSize = maxFrameSize;
+		this.compressionThreshold = compressionThreshold;
+	}
+	
+	public int getMaxFrameSize() {
+		return maxFrameSize;
+	}
+	
+	public int getCompressionThreshold() {
+		return compressionThreshold;
+	}
+	
+	public VRHQFrameDecoder newDecoder(InputStream in) {
+		return new VRHQJsonFrameDecoder(in, maxFrameSize);
+	}
+	
+	public VRHQFrameEncoder newEncoder(OutputStream out) {
+		return new VRHQJsonFrameEncoder(out);
+	}
+	
+	//	Looks at the first byte the client sends, a JSON request can never start with the magic byte
+	//	so old clients carry on in JSON mode without knowing this exists
+	public Session negotiate(InputStream in, OutputStream out) throws IOException {
+		PushbackInputStream input = new PushbackInputStream(in, 1);
+		int first = input.read();
+		if (first < 0) {
+			return new Session(newDecoder(input), newEncoder(out), false);
+		}
+		if ((byte) first != BINARY_MAGIC[0]) {
+			input.unread(first);
+			return new Session(newDecoder(input), newEncoder(out), false);
+		}
+		
+		byte[] hello = new byte[BINARY_MAGIC.length + 1];
+		int read = 0;
+		while (read < hello.length) {
+			int count = input.read(hello, read, hello.length - read);
+			if (count < 0) {
+				throw new IOException("Connection closed during binary hello");
+			}
+			read += count;
+		}
+		for (int i = 1; i < BINARY_MAGIC.length; i++) {
+			if (hello[i - 1] != BINARY_MAGIC[i]) {
+				throw new IOException("Unrecognised binary hello");
+			}
+		}
+		
+		int version = hello[BINARY_MAGIC.length - 1] & 0xFF;
+		boolean deflate = (hello[BINARY_MAGIC.length] & HELLO_DEFLATE) != 0;
+		int agreed = deflate ? HELLO_DEFLATE : 0;
+		
+		byte[] reply = new byte[BINARY_MAGIC.length + 2];
+		System.arraycopy(BINARY_MAGIC, 0, reply, 0, BINARY_MAGIC.length);
+		if (version != BINARY_VERSION) {
+			requestLogger.info("Binary Hello Version {} Refused, Staying On JSON", version);
+			out.write(reply);
+			out.flush();
+			return new Session(newDecoder(input), newEncoder(out), false);
+		}
+		reply[BINARY_MAGIC.length] = (byte) BINARY_VERSION;
+		reply[BINARY_MAGIC.length + 1] = (byte) agreed;
+		out.write(reply);
+		out.flush();
+		
+		return new Session(new VRHQBinaryFrameDecoder(input, maxFrameSize), 
+				new VRHQBinaryFrameEncoder(out, deflate, compressionThreshold), true);
+	}
+	
+	static VRHQRequestFrame newFrame(VRHQRequest request, Options options) {
+		List<VRHQRequestFrame> batch = null;
+		
+		if (options.batch != null) {
+			batch = new ArrayList<>(options.batch.size());
+			for (int i = 0; i < options.batch.size(); i++) {
+				JsonElement entry = options.batch.get(i);
+				if (!entry.isJsonObject()) {
+					throw new JsonParseException("Batch entry " + i + " is not a request");
+				}
+				
+				Options entryOptions = optionsAdapter.fromJsonTree(entry);
+				if (entryOptions.batch != null) {
+					throw new JsonParseException("Batches can not be nested");
+				}
+				if (entryOptions.id == null) {
+					entryOptions.id = (options.id == null ? "" : options.id) + "." + i;
+				}
+				batch.add(newFrame(requestAdapter.fromJsonTree(entry), entryOptions));
+			}
+		}
+		
+		return new VRHQRequestFrame(request, options.stream, options.refresh, options.cancel, options.id, batch);
+	}
+	
+	//	Binary requests only carry the command and message, the request is built the same way Gson builds it from JSON
+	static VRHQRequest newRequest(int command, String message) {
+		JsonObject json = new JsonObject();
+		json.addProperty("command", command);
+		if (message != null) {
+			json.addProperty("message", message);
+		}
+		return requestAdapter.fromJsonTree(json);
+	}
+	
+	static int zigzagEncode(int value) {
+		return (value << 1) ^ (value >> 31);
+	}
+	
+	static int zigzagDecode(int value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+	
+	//	Returns the position after the varint
+	static int writeVarint(int value, byte[] target, int position) {
+		while ((value & ~0x7F) != 0) {
+			target[position++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		target[position++] = (byte) value;
+		return position;
+	}
+	
+	//	position[0] is advanced past the varint
+	static int readVarint(byte[] source, int[] position, int limit) throws IOException {
+		int value = 0;
+		for (int shift = 0; shift < 35 && position[0] < limit; shift += 7) {
+			int next = source[position[0]++];
+			value |= (next & 0x7F) << shift;
+			if ((next & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("Malformed varint");
+	}
+}
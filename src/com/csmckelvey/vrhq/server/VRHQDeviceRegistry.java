@@ -0,0 +1,99 @@
+package com.csmckelvey.vrhq.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongSupplier;
+
+import javax.bluetooth.RemoteDevice;
+
+//	Every RemoteDevice we have heard from, keyed by Bluetooth address
+//	A device that has not been seen within the TTL is treated as gone
+public class VRHQDeviceRegistry {
+	
+	private final long ttlMillis;
+	private final LongSupplier clock;
+	private final Map<String, Entry> devices = new ConcurrentHashMap<>();
+	
+	static class Entry {
+		final RemoteDevice device;
+		final long lastSeen;
+		
+		Entry(RemoteDevice device, long lastSeen) {
+			this.device = device;
+			this.lastSeen = lastSeen;
+		}
+	}
+	
+	public VRHQDeviceRegistry(long ttlMillis) {
+		this(ttlMillis, System::currentTimeMillis);
+	}
+	
+	public VRHQDeviceRegistry(long ttlMillis, LongSupplier clock) {
+		this.ttlMillis = ttlMillis;
+		this.clock = clock;
+	}
+	
+	//	Returns true when the device was not already known
+	public boolean seen(RemoteDevice device) {
+		Entry previous = devices.put(normalize(device.getBluetoothAddress()), new Entry(device, clock.getAsLong()));
+		return previous == null || isExpired(previous);
+	}
+	
+	public RemoteDevice lookup(String address) {
+		String key = normalize(address);
+		Entry entry = devices.get(key);
+		if (entry == null) {
+			return null;
+		}
+		if (isExpired(entry)) {
+			devices.remove(key, entry);
+			return null;
+		}
+		return entry.device;
+	}
+	
+	public long getLastSeen(String address) {
+		Entry entry = devices.get(normalize(address));
+		return entry == null ? -1 : entry.lastSeen;
+	}
+	
+	public List<RemoteDevice> getDevices() {
+		List<RemoteDevice> live = new ArrayList<>();
+		for (Entry entry : devices.values()) {
+			if (!isExpired(entry)) {
+				live.add(entry.device);
+			}
+		}
+		return live;
+	}
+	
+	//	Drops every expired device and returns them
+	public List<RemoteDevice> expire() {
+		List<RemoteDevice> expired = new ArrayList<>();
+		for (Map.Entry<String, Entry> entry : devices.entrySet()) {
+			if (isExpired(entry.getValue()) && devices.remove(entry.getKey(), entry.getValue())) {
+				expired.add(entry.getValue().device);
+			}
+		}
+		return expired;
+	}
+	
+	public void remove(String address) {
+		devices.remove(normalize(address));
+	}
+	
+	public int size() {
+		return devices.size();
+	}
+	
+	private boolean isExpired(Entry entry) {
+		return ttlMillis > 0 && clock.getAsLong() - entry.lastSeen > ttlMillis;
+	}
+	
+	//	Addresses come in with and without separators depending on who typed them
+	static String normalize(String address) {
+		return address.replaceAll(":", "").toUpperCase();
+	}
+}
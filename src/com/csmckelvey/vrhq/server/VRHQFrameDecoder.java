@@ -0,0 +1,13 @@
+package com.csmckelvey.vrhq.server;
+
+import java.io.IOException;
+
+//	Reads request frames from one connection, see VRHQCodec for the wire formats
+public interface VRHQFrameDecoder {
+	
+	//	Returns null at end of stream
+	VRHQRequestFrame read() throws IOException;
+	
+	//	The next frame as plain text, for the few requests that are not JSON
+	String readText() throws IOException;
+}
@@ -0,0 +1,28 @@
+package com.csmckelvey.vrhq.server;
+
+//	Writes response frames to one connection, every frame is flushed as soon as it is complete
+//	Like PrintWriter a write failure is remembered rather than thrown, see checkError
+public interface VRHQFrameEncoder {
+	
+	//	A complete buffered response
+	void writeText(String response);
+	
+	//	Part of a streamed response, id is null unless the request was pipelined
+	void writeChunk(String id, String data);
+	
+	//	Closes a streamed response
+	void writeEnd(String id, int exitCode);
+	
+	default void writeChunk(String data) {
+		writeChunk(null, data);
+	}
+	
+	default void writeEnd(int exitCode) {
+		writeEnd(null, exitCode);
+	}
+	
+	boolean checkError();
+	
+	//	Frees what the encoder holds once the connection is done with, the stream is closed with the connection
+	default void close() {}
+}
@@ -0,0 +1,13 @@
+package com.csmckelvey.vrhq.server;
+
+import java.io.IOException;
+
+//	The oversized frame has already been skipped, so the connection can keep reading after this
+public class VRHQFrameTooLargeException extends IOException {
+	
+	private static final long serialVersionUID = 1L;
+	
+	public VRHQFrameTooLargeException(int maxFrameSize) {
+		super("Request frame exceeds " + maxFrameSize + " bytes");
+	}
+}
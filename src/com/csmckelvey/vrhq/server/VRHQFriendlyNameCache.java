@@ -0,0 +1,118 @@
+package com.csmckelvey.vrhq.server;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+import javax.bluetooth.RemoteDevice;
+
+import com.csmckelvey.vrhq.core.VRHQLogger;
+
+//	Friendly names keyed by Bluetooth address
+//	Asking the remote device for its name is an over the air round trip, so it only ever happens
+//	on the resolver thread and callers get whatever we already know
+public class VRHQFriendlyNameCache {
+	
+	private volatile long stalenessMillis;
+	private final Map<String, Entry> names = new ConcurrentHashMap<>();
+	private final Set<String> resolving = ConcurrentHashMap.newKeySet();
+	private final ExecutorService resolver;
+	
+	private static VRHQLogger logger = null;
+	
+	static {
+		logger = VRHQLogger.getLogger();
+	}
+	
+	static class Entry {
+		final String name;
+		final long resolvedAt;
+		
+		Entry(String name, long resolvedAt) {
+			this.name = name;
+			this.resolvedAt = resolvedAt;
+		}
+	}
+	
+	public VRHQFriendlyNameCache(long stalenessMillis) {
+		this.stalenessMillis = stalenessMillis;
+		
+		//	One thread is enough, the radio answers name requests one at a time
+		this.resolver = Executors.newSingleThreadExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "vrhq-bt-names");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+	
+	public void setStaleness(long stalenessMillis) {
+		this.stalenessMillis = stalenessMillis;
+	}
+	
+	//	Never blocks, returns null until the first lookup for this device has finished
+	public String getName(RemoteDevice device) {
+		String address = device.getBluetoothAddress();
+		Entry entry = names.get(address);
+		
+		if (entry == null || System.currentTimeMillis() - entry.resolvedAt > stalenessMillis) {
+			refresh(device);
+		}
+		
+		return entry == null ? null : entry.name;
+	}
+	
+	//	"Name @ ADDRESS" when the name is known, otherwise just the address
+	public String describe(RemoteDevice device) {
+		String name = getName(device);
+		return name == null ? device.getBluetoothAddress() : name + " @ " + device.getBluetoothAddress();
+	}
+	
+	public void refresh(RemoteDevice device) {
+		String address = device.getBluetoothAddress();
+		if (!resolving.add(address)) {
+			return;
+		}
+		
+		try {
+			resolver.execute(() -> resolve(device));
+		} catch (RejectedExecutionException e) {
+			resolving.remove(address);
+		}
+	}
+	
+	private void resolve(RemoteDevice device) {
+		String address = device.getBluetoothAddress();
+		long start = System.nanoTime();
+		try {
+			String name = device.getFriendlyName(true);
+			VRHQMetrics.getMetrics().recordStage(VRHQMetrics.STAGE_FRIENDLY_NAME, start);
+			if (name != null && !name.isEmpty()) {
+				Entry previous = names.put(address, new Entry(name, System.currentTimeMillis()));
+				if (previous == null || !previous.name.equals(name)) {
+					logger.log("Resolved " + address + " as [" + name + "]");
+				}
+			}
+		} catch (IOException e) {
+			//	Out of range or busy, keep the old name and try again on the next lookup
+			logger.log("Could Not Resolve Name For " + address + ": " + e.getMessage());
+		} finally {
+			resolving.remove(address);
+		}
+	}
+	
+	public void invalidate(String address) {
+		names.remove(address);
+	}
+	
+	public int size() {
+		return names.size();
+	}
+	
+	public void shutdown() {
+		resolver.shutdownNow();
+	}
+}
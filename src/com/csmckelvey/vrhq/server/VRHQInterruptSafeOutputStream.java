@@ -0,0 +1,52 @@
+package com.csmckelvey.vrhq.server;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+//	Writes with the calling thread's interrupt flag cleared and puts it back afterwards
+//	On a virtual thread a socket write with the flag set closes the socket, and a pipelined connection
+//	is shared by every request on it, so a cancelled request must not take the others down with it
+//	Cancels are only delivered while the encoder's lock is held, so no write is ever interrupted part way
+public class VRHQInterruptSafeOutputStream extends FilterOutputStream {
+
+	public VRHQInterruptSafeOutputStream(OutputStream out) {
+		super(out);
+	}
+	
+	@Override
+	public void write(int next) throws IOException {
+		boolean interrupted = Thread.interrupted();
+		try {
+			out.write(next);
+		} finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+	
+	@Override
+	public void write(byte[] buffer, int offset, int length) throws IOException {
+		boolean interrupted = Thread.interrupted();
+		try {
+			out.write(buffer, offset, length);
+		} finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+	
+	@Override
+	public void flush() throws IOException {
+		boolean interrupted = Thread.interrupted();
+		try {
+			out.flush();
+		} finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+}
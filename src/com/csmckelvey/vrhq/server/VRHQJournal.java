@@ -0,0 +1,482 @@
+package com.csmckelvey.vrhq.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+import com.csmckelvey.vrhq.core.VRHQLogger;
+import com.google.gson.JsonObject;
+
+//	Append only binary record of every request and what it returned, written through memory mapped segment files
+//	Requests only hand a record to a bounded queue, a background thread encodes it into the current segment
+//	When the queue is full the record is dropped and counted, like the request log, so the journal never makes a client wait
+//	Each segment keeps a sparse time index in memory so reading the last few minutes only walks the records it returns
+public class VRHQJournal {
+
+	//	"VRHQ" and the format version start every segment
+	private static final int MAGIC = 0x56524851;
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 8;
+	
+	//	Record layout: int length of the rest, long timestamp, long latency (ns), int command, int exit code, byte transport,
+	//	short client length, client, int payload length, payload. The length is written last, so a record cut short
+	//	by a crash reads as zero, which is where every segment's records end
+	private static final int FIXED_SIZE = 8 + 8 + 4 + 4 + 1 + 2 + 4;
+	
+	//	One index entry every INDEX_STRIDE records
+	private static final int INDEX_STRIDE = 64;
+	private static final int MIN_SEGMENT_SIZE = 64 * 1024;
+	private static final int BATCH_SIZE = 256;
+	private static final String SUFFIX = ".vrj";
+	private static final byte[] EMPTY = new byte[0];
+	
+	private final Path directory;
+	private final int segmentSize;
+	private final int maxSegments;
+	private final int payloadLimit;
+	private final BlockingQueue<Record> queue;
+	private final List<Segment> segments = new CopyOnWriteArrayList<>();
+	
+	//	Segments past maxSegments whose file could not be deleted yet, only touched by whoever is rolling
+	private final List<Path> retired = new ArrayList<>();
+	
+	private final AtomicLong dropped = new AtomicLong();
+	private volatile long written = 0;
+	
+	private Segment active = null;
+	private long nextSequence = 0;
+	private Thread writer = null;
+	private volatile boolean running = false;
+	
+	private static VRHQLogger logger = null;
+	
+	private static VRHQServerLogger requestLogger = VRHQServerLogger.getLogger();
+	
+	static {
+		logger = VRHQLogger.getLogger();
+	}
+	
+	public static class Record {
+		
+		private final long timestamp;
+		private final int transport;
+		private final String client;
+		private final int command;
+		private final long latencyNanos;
+		private final int exitCode;
+		private final String payload;
+		
+		public Record(long timestamp, int transport, String client, int command, long latencyNanos, int exitCode, String payload) {
+			this.timestamp = timestamp;
+			this.transport = transport;
+			this.client = client;
+			this.command = command;
+			this.latencyNanos = latencyNanos;
+			this.exitCode = exitCode;
+			this.payload = payload;
+		}
+		
+		public long getTimestamp() {
+			return timestamp;
+		}
+		
+		public int getTransport() {
+			return transport;
+		}
+		
+		//	Null when the transport could not tell who the client was
+		public String getClient() {
+			return client;
+		}
+		
+		public int getCommand() {
+			return command;
+		}
+		
+		public long getLatencyNanos() {
+			return latencyNanos;
+		}
+		
+		public int getExitCode() {
+			return exitCode;
+		}
+		
+		//	Null when the request produced no output or payloads are not kept
+		public String getPayload() {
+			return payload;
+		}
+		
+		public JsonObject toJson() {
+			JsonObject json = new JsonObject();
+			json.addProperty("timestamp", timestamp);
+			json.addProperty("transport", transport == VRHQMetrics.TRANSPORT_TCP ? "tcp" : "bluetooth");
+			json.addProperty("client", client);
+			json.addProperty("command", command);
+			json.addProperty("latencyMicros", latencyNanos / 1000);
+			json.addProperty("exitCode", exitCode);
+			json.addProperty("payload", payload);
+			return json;
+		}
+	}
+	
+	//	One mapped file, only the writer thread appends to it and readers never look past end
+	private static class Segment {
+		
+		final long sequence;
+		final Path path;
+		final MappedByteBuffer buffer;
+		volatile int end = HEADER_SIZE;
+		volatile long firstTimestamp = Long.MAX_VALUE;
+		volatile long lastTimestamp = Long.MIN_VALUE;
+		
+		private long[] indexTimes = new long[16];
+		private int[] indexOffsets = new int[16];
+		private int indexSize = 0;
+		private int records = 0;
+		
+		Segment(long sequence, Path path, MappedByteBuffer buffer) {
+			this.sequence = sequence;
+			this.path = path;
+			this.buffer = buffer;
+		}
+		
+		//	Called after the record's bytes are in place, publishing end is what makes it visible to readers
+		synchronized void appended(long timestamp, int offset, int newEnd) {
+			if (records % INDEX_STRIDE == 0) {
+				if (indexSize == indexTimes.length) {
+					indexTimes = Arrays.copyOf(indexTimes, indexSize * 2);
+					indexOffsets = Arrays.copyOf(indexOffsets, indexSize * 2);
+				}
+				indexTimes[indexSize] = timestamp;
+				indexOffsets[indexSize] = offset;
+				indexSize++;
+			}
+			records++;
+			firstTimestamp = Math.min(firstTimestamp, timestamp);
+			lastTimestamp = Math.max(lastTimestamp, timestamp);
+			end = newEnd;
+		}
+		
+		//	Offset to start reading from for records at or after since
+		//	Records are queued by many threads so their timestamps are only nearly in order, starting one entry early covers that
+		synchronized int seek(long since) {
+			int low = 0;
+			int high = indexSize;
+			while (low < high) {
+				int middle = (low + high) >>> 1;
+				if (indexTimes[middle] < since) {
+					low = middle + 1;
+				}
+				else {
+					high = middle;
+				}
+			}
+			return low == 0 ? HEADER_SIZE : indexOffsets[low - 1];
+		}
+	}
+	
+	public VRHQJournal(String directory, int segmentSize, int maxSegments, int payloadLimit, int queueSize) {
+		this.directory = Paths.get(directory);
+		this.segmentSize = Math.max(segmentSize, MIN_SEGMENT_SIZE);
+		this.maxSegments = Math.max(maxSegments, 1);
+		this.payloadLimit = Math.min(Math.max(payloadLimit, 0), this.segmentSize / 4);
+		this.queue = new ArrayBlockingQueue<>(queueSize);
+	}
+	
+	//	Indexes the segments left by earlier runs, so their requests can still be read, then starts a new one
+	public synchronized boolean start() {
+		if (running) {
+			return true;
+		}
+		
+		try {
+			Files.createDirectories(directory);
+			load();
+			roll();
+		} catch (IOException e) {
+			logger.log("Journal Could Not Be Opened In " + directory.toAbsolutePath() + ": " + e.getMessage());
+			return false;
+		}
+		
+		running = true;
+		writer = new Thread(this::drain, "vrhq-journal");
+		writer.setDaemon(true);
+		writer.start();
+		
+		logger.log("Journal Started In " + directory.toAbsolutePath() + " (" + segments.size() + " Segments)");
+		return true;
+	}
+	
+	//	Never blocks, returns false when the record was dropped
+	public boolean append(int transport, String client, int command, long latencyNanos, int exitCode, CharSequence payload) {
+		Record record = new Record(System.currentTimeMillis(), transport, client, command, latencyNanos, exitCode,
+				payload == null || payload.length() == 0 || payloadLimit == 0 ? null : payload.toString());
+		
+		if (!running || !queue.offer(record)) {
+			dropped.incrementAndGet();
+			return false;
+		}
+		return true;
+	}
+	
+	//	Oldest first, records from every segment still on disk count
+	//	Only the client's own records, a null client only sees those of clients the transport could not identify
+	public void read(long sinceMillis, String client, Consumer<Record> consumer) {
+		read(sinceMillis, record -> Objects.equals(client, record.getClient()), consumer);
+	}
+	
+	public void readAll(long sinceMillis, Consumer<Record> consumer) {
+		read(sinceMillis, record -> true, consumer);
+	}
+	
+	private void read(long sinceMillis, Predicate<Record> filter, Consumer<Record> consumer) {
+		for (Segment segment : segments) {
+			if (segment.lastTimestamp < sinceMillis) {
+				continue;
+			}
+			
+			ByteBuffer buffer = segment.buffer.duplicate();
+			int end = segment.end;
+			int offset = segment.seek(sinceMillis);
+			while (offset + 4 <= end) {
+				int length = buffer.getInt(offset);
+				if (length <= 0) {
+					break;
+				}
+				
+				Record record = decode(buffer, offset + 4);
+				if (record.getTimestamp() >= sinceMillis && filter.test(record)) {
+					consumer.accept(record);
+				}
+				offset += 4 + length;
+			}
+		}
+	}
+	
+	public List<Record> read(long sinceMillis, String client) {
+		List<Record> records = new ArrayList<>();
+		read(sinceMillis, client, records::add);
+		return records;
+	}
+	
+	private void drain() {
+		List<Record> batch = new ArrayList<>(BATCH_SIZE);
+		
+		while (running || !queue.isEmpty()) {
+			try {
+				Record first = queue.poll(100, TimeUnit.MILLISECONDS);
+				if (first == null) {
+					continue;
+				}
+				batch.add(first);
+			} catch (InterruptedException e) {
+				break;
+			}
+			
+			queue.drainTo(batch, BATCH_SIZE - 1);
+			for (Record record : batch) {
+				write(record);
+			}
+			batch.clear();
+		}
+		
+		if (active != null) {
+			active.buffer.force();
+		}
+	}
+	
+	private void write(Record record) {
+		byte[] client = record.getClient() == null ? EMPTY : record.getClient().getBytes(StandardCharsets.UTF_8);
+		byte[] payload = record.getPayload() == null ? EMPTY : record.getPayload().getBytes(StandardCharsets.UTF_8);
+		if (client.length > Short.MAX_VALUE) {
+			client = Arrays.copyOf(client, Short.MAX_VALUE);
+		}
+		int payloadLength = Math.min(payload.length, payloadLimit);
+		int size = 4 + FIXED_SIZE + client.length + payloadLength;
+		
+		try {
+			if (active == null || active.end + size > active.buffer.capacity()) {
+				roll();
+			}
+		} catch (IOException e) {
+			requestLogger.exception(e);
+			dropped.incrementAndGet();
+			return;
+		}
+		
+		ByteBuffer buffer = active.buffer;
+		int offset = active.end;
+		buffer.position(offset + 4);
+		buffer.putLong(record.getTimestamp());
+		buffer.putLong(record.getLatencyNanos());
+		buffer.putInt(record.getCommand());
+		buffer.putInt(record.getExitCode());
+		buffer.put((byte) record.getTransport());
+		buffer.putShort((short) client.length);
+		buffer.put(client);
+		buffer.putInt(payloadLength);
+		buffer.put(payload, 0, payloadLength);
+		buffer.putInt(offset, size - 4);
+		
+		active.appended(record.getTimestamp(), offset, offset + size);
+		written++;
+	}
+	
+	private static Record decode(ByteBuffer buffer, int offset) {
+		long timestamp = buffer.getLong(offset);
+		long latencyNanos = buffer.getLong(offset + 8);
+		int command = buffer.getInt(offset + 16);
+		int exitCode = buffer.getInt(offset + 20);
+		int transport = buffer.get(offset + 24);
+		int clientLength = buffer.getShort(offset + 25);
+		String client = clientLength == 0 ? null : string(buffer, offset + 27, clientLength);
+		int payloadLength = buffer.getInt(offset + 27 + clientLength);
+		String payload = payloadLength == 0 ? null : string(buffer, offset + 31 + clientLength, payloadLength);
+		return new Record(timestamp, transport, client, command, latencyNanos, exitCode, payload);
+	}
+	
+	private static String string(ByteBuffer buffer, int offset, int length) {
+		byte[] bytes = new byte[length];
+		buffer.get(offset, bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+	
+	//	The full segment is flushed, the next one is mapped at full size up front so appending never grows a file
+	private void roll() throws IOException {
+		if (active != null) {
+			active.buffer.force();
+		}
+		
+		long sequence = nextSequence++;
+		Path path = directory.resolve(String.format("%016d", sequence) + SUFFIX);
+		MappedByteBuffer buffer;
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+		}
+		buffer.putInt(0, MAGIC);
+		buffer.putInt(4, VERSION);
+		
+		active = new Segment(sequence, path, buffer);
+		segments.add(active);
+		
+		//	A reader still holding a deleted segment keeps its mapping until it is done with it
+		List<Path> pending = new ArrayList<>(retired);
+		retired.clear();
+		for (Path file : pending) {
+			delete(file);
+		}
+		while (segments.size() > maxSegments) {
+			delete(segments.remove(0).path);
+		}
+	}
+	
+	//	Windows refuses to delete a file that is still mapped, and a mapping only goes once its buffer is collected,
+	//	so a segment that will not go yet is tried again on every later roll instead of staying on disk for good
+	private void delete(Path file) {
+		try {
+			Files.deleteIfExists(file);
+			requestLogger.debug("Journal Segment {} Deleted", file.getFileName());
+		} catch (IOException e) {
+			requestLogger.debug("Journal Segment {} Not Deleted Yet: {}", file.getFileName(), e.getMessage());
+			retired.add(file);
+		}
+	}
+	
+	private void load() throws IOException {
+		List<Path> files = new ArrayList<>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+			for (Path file : stream) {
+				try {
+					nextSequence = Math.max(nextSequence, sequenceOf(file) + 1);
+					files.add(file);
+				} catch (NumberFormatException e) {
+					continue;
+				}
+			}
+		}
+		files.sort(null);
+		
+		//	The segment start is about to roll counts against maxSegments too, older files are deleted before they are mapped
+		//	which is what lets a segment an earlier run could not delete go now
+		int skip = files.size() - (maxSegments - 1);
+		for (Path file : files) {
+			if (skip-- > 0) {
+				delete(file);
+				continue;
+			}
+			
+			MappedByteBuffer buffer;
+			try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+				buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			}
+			if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+				logger.log("Skipping Journal Segment " + file.getFileName() + ", Not A Journal");
+				continue;
+			}
+			
+			Segment segment = new Segment(sequenceOf(file), file, buffer);
+			int offset = HEADER_SIZE;
+			while (offset + 4 <= buffer.capacity()) {
+				int length = buffer.getInt(offset);
+				if (length <= 0 || offset + 4 + length > buffer.capacity()) {
+					break;
+				}
+				segment.appended(buffer.getLong(offset + 4), offset, offset + 4 + length);
+				offset += 4 + length;
+			}
+			segments.add(segment);
+		}
+	}
+	
+	private static long sequenceOf(Path file) {
+		String name = file.getFileName().toString();
+		return Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+	}
+	
+	public int getPayloadLimit() {
+		return payloadLimit;
+	}
+	
+	public long getWritten() {
+		return written;
+	}
+	
+	public long getDropped() {
+		return dropped.get();
+	}
+	
+	//	Everything already queued is written and flushed before returning
+	public void shutdown() {
+		Thread current;
+		synchronized (this) {
+			running = false;
+			current = writer;
+		}
+		
+		if (current != null) {
+			try {
+				current.join(5000);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+}
@@ -0,0 +1,174 @@
+package com.csmckelvey.vrhq.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import com.csmckelvey.vrhq.core.VRHQRequest;
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonReader;
+
+//	Reads newline terminated request frames from one connection
+//	The socket buffer, frame bytes and decoded characters are reused for every frame on the connection
+public class VRHQJsonFrameDecoder implements VRHQFrameDecoder {
+	
+	private static final int INITIAL_FRAME_SIZE = 512;
+	
+	private final InputStream in;
+	private final int maxFrameSize;
+	
+	private final byte[] input = new byte[4096];
+	private int inputPosition = 0;
+	private int inputLimit = 0;
+	
+	private byte[] frame = new byte[INITIAL_FRAME_SIZE];
+	private ByteBuffer frameBytes = ByteBuffer.wrap(frame);
+	private CharBuffer frameChars = CharBuffer.allocate(INITIAL_FRAME_SIZE);
+	private final CharsetDecoder utf8 = StandardCharsets.UTF_8.newDecoder();
+	private final FrameReader frameReader = new FrameReader();
+	private long frameStartNanos = 0;
+	
+	public VRHQJsonFrameDecoder(InputStream in, int maxFrameSize) {
+		this.in = in;
+		this.maxFrameSize = maxFrameSize;
+	}
+	
+	//	Blank lines are skipped
+	@Override
+	public VRHQRequestFrame read() throws IOException {
+		int length;
+		do {
+			length = readFrame();
+			if (length < 0) {
+				return null;
+			}
+		} while (length == 0);
+		
+		decodeChars(length);
+		
+		try {
+			VRHQRequest request = VRHQCodec.requestAdapter.read(newJsonReader());
+			if (request == null) {
+				throw new JsonParseException("Empty request");
+			}
+			
+			//	Second pass over the same characters, the reflective adapters skip fields they do not know
+			VRHQCodec.Options options = VRHQCodec.optionsAdapter.read(newJsonReader());
+			VRHQRequestFrame decoded = VRHQCodec.newFrame(request, options);
+			VRHQMetrics.getMetrics().recordStage(VRHQMetrics.STAGE_DECODE, frameStartNanos);
+			return decoded;
+		} catch (IOException | IllegalStateException | NumberFormatException e) {
+			throw new JsonParseException("Malformed request: " + frameChars, e);
+		}
+	}
+	
+	@Override
+	public String readText() throws IOException {
+		int length = readFrame();
+		return length < 0 ? null : new String(frame, 0, length, StandardCharsets.UTF_8);
+	}
+	
+	//	Decode time runs from the first byte of the frame, not from when we started waiting for it
+	private int readFrame() throws IOException {
+		int length = 0;
+		boolean overflow = false;
+		frameStartNanos = System.nanoTime();
+		
+		while (true) {
+			if (inputPosition == inputLimit) {
+				inputLimit = in.read(input);
+				inputPosition = 0;
+				if (length == 0) {
+					frameStartNanos = System.nanoTime();
+				}
+				if (inputLimit <= 0) {
+					inputLimit = 0;
+					if (length == 0 && !overflow) {
+						return -1;
+					}
+					break;
+				}
+			}
+			
+			byte next = input[inputPosition++];
+			if (next == '\n') {
+				break;
+			}
+			if (overflow) {
+				continue;
+			}
+			
+			if (length >= maxFrameSize) {
+				overflow = true;
+				continue;
+			}
+			if (length == frame.length) {
+				frame = Arrays.copyOf(frame, Math.min(maxFrameSize, length * 2));
+				frameBytes = ByteBuffer.wrap(frame);
+			}
+			frame[length++] = next;
+		}
+		
+		if (overflow) {
+			throw new VRHQFrameTooLargeException(maxFrameSize);
+		}
+		if (length > 0 && frame[length - 1] == '\r') {
+			length--;
+		}
+		return length;
+	}
+	
+	private void decodeChars(int length) throws IOException {
+		if (frameChars.capacity() < length) {
+			frameChars = CharBuffer.allocate(frame.length);
+		}
+		
+		frameBytes.clear().limit(length);
+		frameChars.clear();
+		utf8.reset();
+		
+		CoderResult result = utf8.decode(frameBytes, frameChars, true);
+		if (result.isError()) {
+			result.throwException();
+		}
+		utf8.flush(frameChars);
+		frameChars.flip();
+	}
+	
+	private JsonReader newJsonReader() {
+		frameReader.rewind();
+		return new JsonReader(frameReader);
+	}
+	
+	//	A Reader over the decoded frame that can be rewound without copying
+	private class FrameReader extends Reader {
+		
+		private int position = 0;
+		
+		void rewind() {
+			position = 0;
+		}
+		
+		@Override
+		public int read(char[] target, int offset, int length) {
+			int remaining = frameChars.limit() - position;
+			if (remaining <= 0) {
+				return -1;
+			}
+			
+			int count = Math.min(length, remaining);
+			frameChars.get(position, target, offset, count);
+			position += count;
+			return count;
+		}
+		
+		@Override
+		public void close() {}
+	}
+}
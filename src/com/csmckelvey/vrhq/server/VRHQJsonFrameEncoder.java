@@ -0,0 +1,81 @@
+package com.csmckelvey.vrhq.server;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+import com.google.gson.stream.JsonWriter;
+
+//	Writes JSON line response frames to one connection
+public class VRHQJsonFrameEncoder implements VRHQFrameEncoder {
+	
+	public static final String FRAME_CHUNK = "chunk";
+	public static final String FRAME_END = "end";
+	
+	private final Writer writer;
+	private final JsonWriter json;
+	private boolean error = false;
+	
+	public VRHQJsonFrameEncoder(OutputStream out) {
+		this.writer = new BufferedWriter(new OutputStreamWriter(new VRHQInterruptSafeOutputStream(out), StandardCharsets.UTF_8));
+		
+		//	Lenient so the one JsonWriter can write a top level object per frame for the whole connection
+		this.json = new JsonWriter(writer);
+		this.json.setLenient(true);
+	}
+	
+	//	The original response format, the command output as is followed by a newline
+	@Override
+	public synchronized void writeText(String response) {
+		try {
+			writer.write(response);
+			writer.write('\n');
+			writer.flush();
+		} catch (IOException e) {
+			error = true;
+		}
+	}
+	
+	//	{"id":"7","type":"chunk","data":"..."}, without the id when the request had none
+	@Override
+	public synchronized void writeChunk(String id, String data) {
+		try {
+			beginFrame(id, FRAME_CHUNK).name("data").value(data).endObject();
+			endFrame();
+		} catch (IOException e) {
+			error = true;
+		}
+	}
+	
+	//	{"id":"7","type":"end","exitCode":0}
+	@Override
+	public synchronized void writeEnd(String id, int exitCode) {
+		try {
+			beginFrame(id, FRAME_END).name("exitCode").value(exitCode).endObject();
+			endFrame();
+		} catch (IOException e) {
+			error = true;
+		}
+	}
+	
+	private JsonWriter beginFrame(String id, String type) throws IOException {
+		json.beginObject();
+		if (id != null) {
+			json.name("id").value(id);
+		}
+		return json.name("type").value(type);
+	}
+	
+	private void endFrame() throws IOException {
+		writer.write('\n');
+		writer.flush();
+	}
+	
+	@Override
+	public synchronized boolean checkError() {
+		return error;
+	}
+}
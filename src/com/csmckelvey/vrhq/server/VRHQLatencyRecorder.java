@@ -0,0 +1,148 @@
+package com.csmckelvey.vrhq.server;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+//	Latency histogram in the style of HdrHistogram, values are microseconds
+//	Buckets are log linear with 32 sub buckets per power of two, so every reported value is within about 3% of the real one
+//	Samples land in the slot for the current interval, a window is the merge of the most recent slots
+//	Recording is a couple of shifts and one atomic increment, nothing is allocated after construction
+public class VRHQLatencyRecorder {
+	
+	private static final int SUB_BUCKET_BITS = 6;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int HALF_SUB_BUCKETS = SUB_BUCKETS / 2;
+	
+	//	Anything slower than about 35 minutes is counted in the last bucket
+	private static final long HIGHEST_TRACKABLE = (1L << 31) - 1;
+	private static final int BUCKET_COUNT = indexOf(HIGHEST_TRACKABLE) + 1;
+	
+	private final long slotMillis;
+	private final Slot[] slots;
+	
+	static class Slot {
+		volatile long interval = -1;
+		final AtomicIntegerArray counts = new AtomicIntegerArray(BUCKET_COUNT);
+		final AtomicLong max = new AtomicLong();
+		
+		void reset(long newInterval) {
+			for (int i = 0; i < BUCKET_COUNT; i++) {
+				counts.set(i, 0);
+			}
+			max.set(0);
+			interval = newInterval;
+		}
+	}
+	
+	//	A merged copy of some slots
+	public static class Snapshot {
+		
+		private final int[] counts = new int[BUCKET_COUNT];
+		private long count = 0;
+		private long max = 0;
+		
+		public long getCount() {
+			return count;
+		}
+		
+		public long getMax() {
+			return max;
+		}
+		
+		//	The highest value that is equivalent to the value at the given percentile, 0 when nothing was recorded
+		public long getValueAtPercentile(double percentile) {
+			if (count == 0) {
+				return 0;
+			}
+			
+			long target = Math.max(1, (long) Math.ceil(percentile / 100.0 * count));
+			long seen = 0;
+			for (int i = 0; i < BUCKET_COUNT; i++) {
+				seen += counts[i];
+				if (seen >= target) {
+					return Math.min(highestEquivalentValue(i), max);
+				}
+			}
+			return max;
+		}
+	}
+	
+	public VRHQLatencyRecorder(long slotMillis, int slotCount) {
+		this.slotMillis = slotMillis;
+		this.slots = new Slot[slotCount];
+		for (int i = 0; i < slotCount; i++) {
+			slots[i] = new Slot();
+		}
+	}
+	
+	public void recordNanos(long nanos) {
+		record(nanos / 1000);
+	}
+	
+	public void record(long micros) {
+		long value = Math.max(0, Math.min(micros, HIGHEST_TRACKABLE));
+		Slot slot = currentSlot(System.currentTimeMillis() / slotMillis);
+		slot.counts.incrementAndGet(indexOf(value));
+		slot.max.accumulateAndGet(Math.max(0, micros), Math::max);
+	}
+	
+	//	Merges every slot that started within the window, including the one that is still filling up
+	public Snapshot snapshot(long windowMillis) {
+		long now = System.currentTimeMillis() / slotMillis;
+		long oldest = now - Math.max(1, Math.min(slots.length, (windowMillis + slotMillis - 1) / slotMillis)) + 1;
+		
+		Snapshot snapshot = new Snapshot();
+		for (Slot slot : slots) {
+			long interval = slot.interval;
+			if (interval < oldest || interval > now) {
+				continue;
+			}
+			
+			for (int i = 0; i < BUCKET_COUNT; i++) {
+				int bucket = slot.counts.get(i);
+				snapshot.counts[i] += bucket;
+				snapshot.count += bucket;
+			}
+			snapshot.max = Math.max(snapshot.max, slot.max.get());
+		}
+		return snapshot;
+	}
+	
+	public long getWindowMillis() {
+		return slotMillis * slots.length;
+	}
+	
+	//	Samples racing with the reset of an expired slot may be lost, which is fine for monitoring
+	private Slot currentSlot(long interval) {
+		Slot slot = slots[(int) (interval % slots.length)];
+		if (slot.interval != interval) {
+			synchronized (slot) {
+				if (slot.interval != interval) {
+					slot.reset(interval);
+				}
+			}
+		}
+		return slot;
+	}
+	
+	//	Values below SUB_BUCKETS are exact, above that each power of two is split into HALF_SUB_BUCKETS
+	static int indexOf(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		
+		int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BUCKET_BITS - 1);
+		int subBucket = (int) (value >>> shift);
+		return SUB_BUCKETS + (shift - 1) * HALF_SUB_BUCKETS + (subBucket - HALF_SUB_BUCKETS);
+	}
+	
+	static long highestEquivalentValue(int index) {
+		if (index < SUB_BUCKETS) {
+			return index;
+		}
+		
+		int shift = (index - SUB_BUCKETS) / HALF_SUB_BUCKETS + 1;
+		long subBucket = (index - SUB_BUCKETS) % HALF_SUB_BUCKETS + HALF_SUB_BUCKETS;
+		return ((subBucket + 1) << shift) - 1;
+	}
+}
@@ -0,0 +1,14 @@
+package com.csmckelvey.vrhq.server;
+
+import java.io.IOException;
+
+//	The frame boundary itself was corrupt, so unlike an oversized frame nothing after it can be trusted
+//	The session answers like any invalid request and then ends
+public class VRHQMalformedFrameException extends IOException {
+	
+	private static final long serialVersionUID = 1L;
+	
+	public VRHQMalformedFrameException(String message) {
+		super(message);
+	}
+}
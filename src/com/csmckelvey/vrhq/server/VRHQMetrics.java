@@ -0,0 +1,220 @@
+package com.csmckelvey.vrhq.server;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.atomic.LongAdder;
+
+//	Where the time goes on the request path, and how much traffic each transport carries
+//	Every stage and every command id has a latency recorder, read back as p50 / p99 / max over the last 1, 5 and 15 minutes
+public class VRHQMetrics {
+	
+	public static final int STAGE_ACCEPT = 0;
+	public static final int STAGE_FRIENDLY_NAME = 1;
+	public static final int STAGE_DECODE = 2;
+	public static final int STAGE_EXECUTE = 3;
+	public static final int STAGE_RESPOND = 4;
+	
+	public static final int TRANSPORT_TCP = 0;
+	public static final int TRANSPORT_BLUETOOTH = 1;
+	
+	private static final String[] STAGE_NAMES = { "accept", "friendlyName", "decode", "execute", "respond" };
+	private static final String[] TRANSPORT_NAMES = { "tcp", "bluetooth" };
+	
+	//	Command ids from -1, the health check, up to the server only commands
+	private static final int FIRST_COMMAND = -1;
+	private static final int COMMAND_COUNT = 17;
+	
+	private static final long SLOT_MILLIS = 30000;
+	private static final int SLOT_COUNT = 30;
+	private static final long[] WINDOWS_MILLIS = { 60000, 300000, 900000 };
+	private static final String[] WINDOW_NAMES = { "1m", "5m", "15m" };
+	
+	private static final VRHQMetrics instance = new VRHQMetrics();
+	
+	private final long startedAt = System.currentTimeMillis();
+	private final VRHQLatencyRecorder[] stages = new VRHQLatencyRecorder[STAGE_NAMES.length];
+	private final VRHQLatencyRecorder[] commands = new VRHQLatencyRecorder[COMMAND_COUNT];
+	private final Counters[] transports = { new Counters(), new Counters() };
+	
+	static class Counters {
+		final LongAdder requests = new LongAdder();
+		final LongAdder errors = new LongAdder();
+		final LongAdder timeouts = new LongAdder();
+		final LongAdder rejected = new LongAdder();
+		final LongAdder bytesIn = new LongAdder();
+		final LongAdder bytesOut = new LongAdder();
+	}
+	
+	private VRHQMetrics() {
+		for (int i = 0; i < stages.length; i++) {
+			stages[i] = new VRHQLatencyRecorder(SLOT_MILLIS, SLOT_COUNT);
+		}
+	}
+	
+	public static VRHQMetrics getMetrics() {
+		return instance;
+	}
+	
+	public void recordStage(int stage, long startNanos) {
+		stages[stage].recordNanos(System.nanoTime() - startNanos);
+	}
+	
+	//	One finished request, a non zero exit code counts as an error
+	public void recordCommand(int transport, int command, long startNanos, int exitCode) {
+		long elapsed = System.nanoTime() - startNanos;
+		
+		Counters counters = transports[transport];
+		counters.requests.increment();
+		if (exitCode != 0) {
+			counters.errors.increment();
+		}
+		
+		VRHQLatencyRecorder recorder = commandRecorder(command);
+		if (recorder != null) {
+			recorder.recordNanos(elapsed);
+		}
+	}
+	
+	public void countTimeout(int transport) {
+		transports[transport].timeouts.increment();
+	}
+	
+	//	Turned away by admission control, busy or over the client's rate
+	public void countRejected(int transport) {
+		transports[transport].rejected.increment();
+	}
+	
+	public long getRejected(int transport) {
+		return transports[transport].rejected.sum();
+	}
+	
+	public long getRequests(int transport) {
+		return transports[transport].requests.sum();
+	}
+	
+	public long getErrors(int transport) {
+		return transports[transport].errors.sum();
+	}
+	
+	public long getTimeouts(int transport) {
+		return transports[transport].timeouts.sum();
+	}
+	
+	public long getBytesIn(int transport) {
+		return transports[transport].bytesIn.sum();
+	}
+	
+	public long getBytesOut(int transport) {
+		return transports[transport].bytesOut.sum();
+	}
+	
+	public VRHQLatencyRecorder getStage(int stage) {
+		return stages[stage];
+	}
+	
+	//	Created on first use, most boxes only ever see a handful of the command ids
+	public VRHQLatencyRecorder commandRecorder(int command) {
+		int index = command - FIRST_COMMAND;
+		if (index < 0 || index >= COMMAND_COUNT) {
+			return null;
+		}
+		
+		VRHQLatencyRecorder recorder = commands[index];
+		if (recorder == null) {
+			synchronized (commands) {
+				recorder = commands[index];
+				if (recorder == null) {
+					recorder = new VRHQLatencyRecorder(SLOT_MILLIS, SLOT_COUNT);
+					commands[index] = recorder;
+				}
+			}
+		}
+		return recorder;
+	}
+	
+	//	Counts every byte read from the stream against the transport
+	public InputStream countIn(InputStream in, int transport) {
+		LongAdder bytes = transports[transport].bytesIn;
+		return new FilterInputStream(in) {
+			@Override
+			public int read() throws IOException {
+				int next = super.read();
+				if (next >= 0) {
+					bytes.increment();
+				}
+				return next;
+			}
+			
+			@Override
+			public int read(byte[] buffer, int offset, int length) throws IOException {
+				int count = in.read(buffer, offset, length);
+				if (count > 0) {
+					bytes.add(count);
+				}
+				return count;
+			}
+		};
+	}
+	
+	//	Counts every byte written to the stream against the transport
+	public OutputStream countOut(OutputStream out, int transport) {
+		LongAdder bytes = transports[transport].bytesOut;
+		return new FilterOutputStream(out) {
+			@Override
+			public void write(int next) throws IOException {
+				out.write(next);
+				bytes.increment();
+			}
+			
+			@Override
+			public void write(byte[] buffer, int offset, int length) throws IOException {
+				out.write(buffer, offset, length);
+				bytes.add(length);
+			}
+		};
+	}
+	
+	//	The plain text dump, latencies are in milliseconds
+	public String dump() {
+		StringBuilder text = new StringBuilder(4096);
+		text.append("uptime ").append((System.currentTimeMillis() - startedAt) / 1000).append("s\n");
+		
+		//	Soak runs watch these two lines for leaks
+		MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		text.append(String.format("heap used %dKB committed %dKB max %dKB%n", heap.getUsed() / 1024, heap.getCommitted() / 1024, heap.getMax() / 1024));
+		text.append(String.format("threads live %d peak %d daemon %d%n%n", threads.getThreadCount(), threads.getPeakThreadCount(), threads.getDaemonThreadCount()));
+		
+		text.append(String.format("%-12s %10s %8s %8s %8s %12s %12s%n", "transport", "requests", "errors", "timeouts", "rejected", "bytesIn", "bytesOut"));
+		for (int i = 0; i < transports.length; i++) {
+			text.append(String.format("%-12s %10d %8d %8d %8d %12d %12d%n", TRANSPORT_NAMES[i], 
+					getRequests(i), getErrors(i), getTimeouts(i), getRejected(i), getBytesIn(i), getBytesOut(i)));
+		}
+		
+		text.append('\n').append(String.format("%-20s %-4s %8s %10s %10s %10s%n", "latency", "win", "count", "p50", "p99", "max"));
+		for (int i = 0; i < stages.length; i++) {
+			appendRecorder(text, "stage." + STAGE_NAMES[i], stages[i]);
+		}
+		for (int i = 0; i < COMMAND_COUNT; i++) {
+			VRHQLatencyRecorder recorder = commands[i];
+			if (recorder != null) {
+				appendRecorder(text, "command." + (i + FIRST_COMMAND), recorder);
+			}
+		}
+		return text.toString();
+	}
+	
+	private void appendRecorder(StringBuilder text, String name, VRHQLatencyRecorder recorder) {
+		for (int w = 0; w < WINDOWS_MILLIS.length; w++) {
+			VRHQLatencyRecorder.Snapshot snapshot = recorder.snapshot(WINDOWS_MILLIS[w]);
+			text.append(String.format("%-20s %-4s %8d %10.3f %10.3f %10.3f%n", w == 0 ? name : "", WINDOW_NAMES[w], snapshot.getCount(), 
+					snapshot.getValueAtPercentile(50) / 1000.0, snapshot.getValueAtPercentile(99) / 1000.0, snapshot.getMax() / 1000.0));
+		}
+	}
+}
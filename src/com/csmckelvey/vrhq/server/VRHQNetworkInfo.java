@@ -0,0 +1,135 @@
+package com.csmckelvey.vrhq.server;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InterfaceAddress;
+import java.net.NetworkInterface;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+//	Builds the NETWORK_INFO response inside the JVM instead of forking ifconfig / ipconfig
+public class VRHQNetworkInfo {
+	
+	public static final String PROC_NET_DEV = "/proc/net/dev";
+	
+	//	Column order of the values we keep from each /proc/net/dev row
+	public static final int RX_BYTES = 0;
+	public static final int RX_PACKETS = 1;
+	public static final int RX_ERRORS = 2;
+	public static final int RX_DROPPED = 3;
+	public static final int TX_BYTES = 8;
+	public static final int TX_PACKETS = 9;
+	public static final int TX_ERRORS = 10;
+	public static final int TX_DROPPED = 11;
+	
+	public JsonObject collect() throws IOException {
+		Map<String, long[]> counters = readInterfaceCounters();
+		JsonArray interfaces = new JsonArray();
+		
+		for (NetworkInterface networkInterface : Collections.list(NetworkInterface.getNetworkInterfaces())) {
+			interfaces.add(describe(networkInterface, counters.get(networkInterface.getName())));
+		}
+		
+		JsonObject info = new JsonObject();
+		info.addProperty("timestamp", System.currentTimeMillis());
+		info.add("interfaces", interfaces);
+		return info;
+	}
+	
+	//	Counters are left out when null, the change watcher compares descriptions and those change all the time
+	JsonObject describe(NetworkInterface networkInterface, long[] counters) throws IOException {
+		JsonObject json = new JsonObject();
+		json.addProperty("name", networkInterface.getName());
+		json.addProperty("displayName", networkInterface.getDisplayName());
+		json.addProperty("index", networkInterface.getIndex());
+		json.addProperty("up", networkInterface.isUp());
+		json.addProperty("loopback", networkInterface.isLoopback());
+		json.addProperty("virtual", networkInterface.isVirtual());
+		json.addProperty("pointToPoint", networkInterface.isPointToPoint());
+		json.addProperty("mtu", networkInterface.getMTU());
+		json.addProperty("mac", formatMac(networkInterface.getHardwareAddress()));
+		
+		JsonArray addresses = new JsonArray();
+		for (InterfaceAddress interfaceAddress : networkInterface.getInterfaceAddresses()) {
+			JsonObject address = new JsonObject();
+			address.addProperty("address", interfaceAddress.getAddress().getHostAddress());
+			address.addProperty("prefixLength", interfaceAddress.getNetworkPrefixLength());
+			InetAddress broadcast = interfaceAddress.getBroadcast();
+			if (broadcast != null) {
+				address.addProperty("broadcast", broadcast.getHostAddress());
+			}
+			addresses.add(address);
+		}
+		json.add("addresses", addresses);
+		
+		if (counters != null) {
+			JsonObject stats = new JsonObject();
+			stats.addProperty("rxBytes", counters[RX_BYTES]);
+			stats.addProperty("rxPackets", counters[RX_PACKETS]);
+			stats.addProperty("rxErrors", counters[RX_ERRORS]);
+			stats.addProperty("rxDropped", counters[RX_DROPPED]);
+			stats.addProperty("txBytes", counters[TX_BYTES]);
+			stats.addProperty("txPackets", counters[TX_PACKETS]);
+			stats.addProperty("txErrors", counters[TX_ERRORS]);
+			stats.addProperty("txDropped", counters[TX_DROPPED]);
+			json.add("counters", stats);
+		}
+		
+		return json;
+	}
+	
+	//	Interface name -> the 16 numeric columns of /proc/net/dev, empty when not on Linux
+	public static Map<String, long[]> readInterfaceCounters() throws IOException {
+		Map<String, long[]> counters = new HashMap<>();
+		File procNetDev = new File(PROC_NET_DEV);
+		if (!procNetDev.canRead()) {
+			return counters;
+		}
+		
+		try (BufferedReader in = new BufferedReader(new FileReader(procNetDev))) {
+			String line;
+			while ((line = in.readLine()) != null) {
+				int colon = line.indexOf(':');
+				if (colon < 0) {
+					continue;
+				}
+				
+				String[] fields = line.substring(colon + 1).trim().split("\\s+");
+				long[] values = new long[fields.length];
+				for (int i = 0; i < fields.length; i++) {
+					values[i] = Long.parseLong(fields[i]);
+				}
+				
+				if (values.length > TX_DROPPED) {
+					counters.put(line.substring(0, colon).trim(), values);
+				}
+			}
+		} catch (NumberFormatException e) {
+			throw new IOException("Unexpected format in " + PROC_NET_DEV, e);
+		}
+		
+		return counters;
+	}
+	
+	private static String formatMac(byte[] mac) {
+		if (mac == null) {
+			return null;
+		}
+		
+		StringBuilder formatted = new StringBuilder();
+		for (int i = 0; i < mac.length; i++) {
+			if (i > 0) {
+				formatted.append(':');
+			}
+			formatted.append(String.format("%02X", mac[i]));
+		}
+		return formatted.toString();
+	}
+}
@@ -0,0 +1,318 @@
+package com.csmckelvey.vrhq.server;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.InterfaceAddress;
+import java.net.NetworkInterface;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+
+//	Sweeps IPv4 subnets for live hosts for SCAN_NETWORK
+//	Every host is probed on its own virtual thread so a whole subnet takes about one probe timeout, not one per host
+public class VRHQNetworkScanner {
+
+	public static final int[] DEFAULT_PORTS = { 22, 80, 443, 445 };
+	
+	private final int probeTimeout;
+	private final int maxHosts;
+	private final int[] ports;
+	private final Semaphore probePermits;
+	private final ExecutorService pingThreads;
+	
+	private static final Gson gson = new Gson();
+	private static final JsonObject END_OF_SCAN = new JsonObject();
+	
+	private static VRHQServerLogger requestLogger = VRHQServerLogger.getLogger();
+	
+	//	The permits are shared by every scan so two clients scanning at once do not double the sockets in use
+	public VRHQNetworkScanner(int parallelism, int probeTimeout, int maxHosts, int[] ports) {
+		this.probeTimeout = probeTimeout;
+		this.maxHosts = maxHosts;
+		this.ports = ports;
+		this.probePermits = new Semaphore(parallelism);
+		
+		//	isReachable blocks in native code and would pin the carrier of a virtual thread, so pings get platform threads
+		//	They are only created while a scan is running and go away once idle
+		this.pingThreads = Executors.newCachedThreadPool(Thread.ofPlatform().daemon().name("vrhq-ping-", 0).factory());
+	}
+	
+	public void shutdown() {
+		pingThreads.shutdownNow();
+	}
+	
+	//	Streams one line per live host as it answers, then a summary line
+	//	The target is a CIDR block or a single address, blank scans the subnets of every interface that is up
+	//	A target has to lie within one of those subnets, the sweep never reaches past the networks this box is on
+	public void scan(String target, VRHQOutputHandler handler) {
+		List<InetAddress> hosts;
+		try {
+			hosts = target == null || target.isBlank() ? localHosts() : targetHosts(target.trim());
+		} catch (IOException | IllegalArgumentException e) {
+			requestLogger.info("Invalid Scan Target [{}]: {}", target, e.getMessage());
+			handler.onOutput("Invalid Scan Target");
+			handler.onComplete(-1);
+			return;
+		}
+		
+		long start = System.nanoTime();
+		requestLogger.info("Scanning {} Hosts", hosts.size());
+		
+		//	Probes finish on their own threads, the calling thread is the only one that writes to the handler
+		BlockingQueue<JsonObject> found = new LinkedBlockingQueue<>();
+		AtomicInteger remaining = new AtomicInteger(hosts.size());
+		int count = 0;
+		boolean cancelled = false;
+		
+		try (ExecutorService probes = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("vrhq-scan-", 0).factory())) {
+			for (InetAddress host : hosts) {
+				probes.execute(() -> {
+					try {
+						String method = probeHost(host, probes);
+						if (method != null) {
+							JsonObject line = new JsonObject();
+							line.addProperty("address", host.getHostAddress());
+							line.addProperty("probe", method);
+							found.add(line);
+						}
+					} catch (InterruptedException e) {
+						//	The scan was cancelled while this host was waiting for a permit
+						Thread.currentThread().interrupt();
+					} finally {
+						if (remaining.decrementAndGet() == 0) {
+							found.add(END_OF_SCAN);
+						}
+					}
+				});
+			}
+			
+			try {
+				JsonObject line;
+				while (!hosts.isEmpty() && (line = found.take()) != END_OF_SCAN) {
+					handler.onOutput(gson.toJson(line));
+					count++;
+				}
+			} catch (InterruptedException e) {
+				//	Probes on virtual threads give up their sockets when interrupted, so closing the executor returns quickly
+				requestLogger.info("Scan Cancelled After {} Hosts", count);
+				probes.shutdownNow();
+				cancelled = true;
+			}
+		}
+		
+		if (cancelled) {
+			Thread.currentThread().interrupt();
+			handler.onComplete(-1);
+			return;
+		}
+		
+		JsonObject summary = new JsonObject();
+		summary.addProperty("scanned", hosts.size());
+		summary.addProperty("found", count);
+		summary.addProperty("elapsedMillis", (System.nanoTime() - start) / 1000000);
+		handler.onOutput(gson.toJson(summary));
+		handler.onComplete(0);
+	}
+	
+	//	Runs the ping and every port at once and returns the first that answers, or null once they have all given up
+	//	The host's permit is held until its last probe has given up, the ones still running after the answer use sockets and ping threads too
+	private String probeHost(InetAddress host, ExecutorService probes) throws InterruptedException {
+		probePermits.acquire();
+		CompletableFuture<String> answer = new CompletableFuture<>();
+		AtomicInteger pending = new AtomicInteger(ports.length + 1);
+		
+		probe(pingThreads, () -> isReachable(host) ? "ping" : null, answer, pending);
+		for (int port : ports) {
+			probe(probes, () -> connect(host, port), answer, pending);
+		}
+		
+		try {
+			return answer.get();
+		} catch (ExecutionException e) {
+			return null;
+		}
+	}
+	
+	//	A probe that could not be started, because the scan was cancelled, counts as one that gave up
+	private void probe(ExecutorService executor, Supplier<String> probe, CompletableFuture<String> answer, AtomicInteger pending) {
+		try {
+			executor.execute(() -> {
+				String method = null;
+				try {
+					method = probe.get();
+				} finally {
+					settle(answer, pending, method);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			settle(answer, pending, null);
+		}
+	}
+	
+	private void settle(CompletableFuture<String> answer, AtomicInteger pending, String method) {
+		if (method != null) {
+			answer.complete(method);
+		}
+		if (pending.decrementAndGet() == 0) {
+			answer.complete(null);
+			probePermits.release();
+		}
+	}
+	
+	private boolean isReachable(InetAddress host) {
+		try {
+			return host.isReachable(probeTimeout);
+		} catch (IOException e) {
+			return false;
+		}
+	}
+	
+	//	A refused connection still means something at that address answered
+	private String connect(InetAddress host, int port) {
+		try (Socket socket = new Socket()) {
+			socket.connect(new InetSocketAddress(host, port), probeTimeout);
+			return "tcp/" + port;
+		} catch (ConnectException e) {
+			return "tcp/" + port + "/refused";
+		} catch (IOException e) {
+			return null;
+		}
+	}
+	
+	//	Every host on the IPv4 subnets of the interfaces that are up, without our own addresses
+	private List<InetAddress> localHosts() throws IOException {
+		Set<Integer> own = new LinkedHashSet<>();
+		Set<Integer> hosts = new LinkedHashSet<>();
+		
+		for (InterfaceAddress interfaceAddress : localAddresses()) {
+			int address = toInt(interfaceAddress.getAddress());
+			own.add(address);
+			addHosts(hosts, address, interfaceAddress.getNetworkPrefixLength());
+		}
+		
+		hosts.removeAll(own);
+		return toAddresses(hosts);
+	}
+	
+	private List<InetAddress> targetHosts(String target) throws IOException {
+		int slash = target.indexOf('/');
+		int address = toInt(parseIpv4(slash < 0 ? target : target.substring(0, slash)));
+		int prefix = slash < 0 ? 32 : Integer.parseInt(target.substring(slash + 1));
+		if (prefix < 0 || prefix > 32) {
+			throw new IllegalArgumentException("Prefix out of range " + prefix);
+		}
+		if (!isLocal(address, prefix)) {
+			throw new IllegalArgumentException("Not on a local subnet " + target);
+		}
+		
+		Set<Integer> hosts = new LinkedHashSet<>();
+		addHosts(hosts, address, prefix);
+		return toAddresses(hosts);
+	}
+	
+	//	The block has to sit inside the subnet of one of our interfaces, as wide as it or narrower
+	private boolean isLocal(int address, int prefix) throws IOException {
+		for (InterfaceAddress interfaceAddress : localAddresses()) {
+			int localPrefix = interfaceAddress.getNetworkPrefixLength();
+			int mask = localPrefix == 0 ? 0 : -1 << (32 - localPrefix);
+			if (prefix >= localPrefix && (address & mask) == (toInt(interfaceAddress.getAddress()) & mask)) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	//	The IPv4 addresses of the interfaces that are up, loopback left out
+	private static List<InterfaceAddress> localAddresses() throws IOException {
+		List<InterfaceAddress> addresses = new ArrayList<>();
+		for (NetworkInterface networkInterface : Collections.list(NetworkInterface.getNetworkInterfaces())) {
+			if (!networkInterface.isUp() || networkInterface.isLoopback()) {
+				continue;
+			}
+			
+			for (InterfaceAddress interfaceAddress : networkInterface.getInterfaceAddresses()) {
+				if (interfaceAddress.getAddress() instanceof Inet4Address) {
+					addresses.add(interfaceAddress);
+				}
+			}
+		}
+		return addresses;
+	}
+	
+	//	Subnets larger than maxHosts are narrowed to the block of that size around the address
+	//	The network and broadcast addresses are skipped except on /31 and /32 which have neither
+	private void addHosts(Set<Integer> hosts, int address, int prefix) {
+		int minPrefix = 32 - (31 - Integer.numberOfLeadingZeros(Math.max(1, maxHosts)));
+		long size = 1L << (32 - Math.max(prefix, minPrefix));
+		long network = (address & 0xFFFFFFFFL) & ~(size - 1);
+		long first = size > 2 ? network + 1 : network;
+		long last = size > 2 ? network + size - 2 : network + size - 1;
+		for (long host = first; host <= last; host++) {
+			hosts.add((int) host);
+		}
+	}
+	
+	//	Only dotted quads are accepted so a target never turns into a DNS lookup
+	private static InetAddress parseIpv4(String text) throws UnknownHostException {
+		String[] parts = text.split("\\.");
+		if (parts.length != 4) {
+			throw new IllegalArgumentException("Not an IPv4 address " + text);
+		}
+		
+		byte[] bytes = new byte[4];
+		for (int i = 0; i < 4; i++) {
+			int part = Integer.parseInt(parts[i]);
+			if (part < 0 || part > 255) {
+				throw new IllegalArgumentException("Not an IPv4 address " + text);
+			}
+			bytes[i] = (byte) part;
+		}
+		return InetAddress.getByAddress(bytes);
+	}
+	
+	private static int toInt(InetAddress address) {
+		byte[] bytes = address.getAddress();
+		return ((bytes[0] & 0xFF) << 24) | ((bytes[1] & 0xFF) << 16) | ((bytes[2] & 0xFF) << 8) | (bytes[3] & 0xFF);
+	}
+	
+	private static List<InetAddress> toAddresses(Set<Integer> hosts) throws UnknownHostException {
+		List<InetAddress> addresses = new ArrayList<>(hosts.size());
+		for (int host : hosts) {
+			addresses.add(InetAddress.getByAddress(new byte[] { (byte) (host >>> 24), (byte) (host >>> 16), (byte) (host >>> 8), (byte) host }));
+		}
+		return addresses;
+	}
+	
+	public static int[] parsePorts(String ports) {
+		if (ports == null || ports.isBlank()) {
+			return DEFAULT_PORTS;
+		}
+		
+		String[] parts = ports.split(",");
+		int[] parsed = new int[parts.length];
+		for (int i = 0; i < parts.length; i++) {
+			parsed[i] = Integer.parseInt(parts[i].trim());
+		}
+		return parsed;
+	}
+}
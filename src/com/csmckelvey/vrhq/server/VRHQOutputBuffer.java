@@ -0,0 +1,26 @@
+package com.csmckelvey.vrhq.server;
+
+public class VRHQOutputBuffer implements VRHQOutputHandler {
+	
+	private int exitCode = -1;
+	private final StringBuilder output = new StringBuilder();
+	
+	@Override
+	public synchronized void onOutput(String line) {
+		output.append(line).append("\n");
+	}
+	
+	@Override
+	public synchronized void onComplete(int exitCode) {
+		this.exitCode = exitCode;
+	}
+	
+	public synchronized int getExitCode() {
+		return exitCode;
+	}
+	
+	@Override
+	public synchronized String toString() {
+		return output.toString();
+	}
+}
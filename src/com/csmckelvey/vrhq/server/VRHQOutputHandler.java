@@ -0,0 +1,15 @@
+package com.csmckelvey.vrhq.server;
+
+//	Receives command output as it is produced, one line at a time
+//	onComplete is always called last, with -1 when the command could not be run
+public interface VRHQOutputHandler {
+	
+	void onOutput(String line);
+	
+	void onComplete(int exitCode);
+	
+	//	True once output can no longer reach the client, long running handlers stop when they see it
+	default boolean checkError() {
+		return false;
+	}
+}
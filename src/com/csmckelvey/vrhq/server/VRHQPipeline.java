@@ -0,0 +1,158 @@
+package com.csmckelvey.vrhq.server;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+//	Runs the pipelined requests of one connection concurrently, each on its own virtual thread
+//	Responses are written as chunk / end frames tagged with the request id as soon as each request finishes
+public class VRHQPipeline {
+	
+	//	Runs one request, interrupting the calling thread cancels it
+	public interface Dispatcher {
+		void dispatch(VRHQRequestFrame frame, VRHQOutputHandler handler);
+	}
+	
+	private final VRHQFrameEncoder out;
+	private final Dispatcher dispatcher;
+	private final Semaphore inFlight;
+	private final ExecutorService workers;
+	
+	//	Registered when the request is submitted, so a cancel read straight after its request is not lost
+	private final Map<String, Running> running = new ConcurrentHashMap<>();
+	
+	private static VRHQServerLogger requestLogger = VRHQServerLogger.getLogger();
+	
+	private static class Running {
+		private final boolean subscription;
+		private Thread thread = null;
+		private boolean cancelled = false;
+		
+		Running(boolean subscription) {
+			this.subscription = subscription;
+		}
+	}
+	
+	public VRHQPipeline(VRHQFrameEncoder out, Dispatcher dispatcher, int maxInFlight) {
+		this.out = out;
+		this.dispatcher = dispatcher;
+		this.inFlight = new Semaphore(maxInFlight);
+		this.workers = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("vrhq-pipeline-", 0).factory());
+	}
+	
+	//	Blocks once maxInFlight requests are running so a client can not queue unbounded work on one connection
+	public void submit(VRHQRequestFrame frame) throws InterruptedException {
+		if (frame.isBatch()) {
+			for (VRHQRequestFrame entry : frame.getBatch()) {
+				submit(entry);
+			}
+			return;
+		}
+		
+		if (frame.isCancel()) {
+			cancel(frame.getId());
+			return;
+		}
+		
+		inFlight.acquire();
+		Running request = new Running(frame.getRequest().getCommand() == VRHQServerCommands.SC_SUBSCRIBE);
+		if (frame.getId() != null) {
+			running.put(frame.getId(), request);
+		}
+		try {
+			workers.execute(() -> run(frame, request));
+		} catch (RuntimeException e) {
+			running.remove(frame.getId(), request);
+			inFlight.release();
+			throw e;
+		}
+	}
+	
+	private void run(VRHQRequestFrame frame, Running request) {
+		String id = frame.getId();
+		synchronized (request) {
+			request.thread = Thread.currentThread();
+			if (request.cancelled) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		
+		try {
+			if (frame.isStream()) {
+				dispatcher.dispatch(frame, new VRHQStreamWriter(out, id));
+			}
+			else {
+				//	A buffered response is one chunk holding all of the output, if there was any, followed by the end frame
+				VRHQOutputBuffer output = new VRHQOutputBuffer();
+				dispatcher.dispatch(frame, output);
+				String result = output.toString();
+				if (!result.isEmpty()) {
+					out.writeChunk(id, result);
+				}
+				out.writeEnd(id, output.getExitCode());
+			}
+		} catch (RuntimeException e) {
+			requestLogger.exception(e);
+			out.writeEnd(id, -1);
+		} finally {
+			if (id != null) {
+				running.remove(id, request);
+			}
+			inFlight.release();
+		}
+	}
+	
+	//	A request whose thread has not started yet is interrupted as soon as it does
+	public void cancel(String id) {
+		Running request = id == null ? null : running.get(id);
+		if (request != null) {
+			requestLogger.info("Pipelined Request {} Cancelled By Client", id);
+			interrupt(request);
+		}
+	}
+	
+	//	Only while the encoder is not writing, an interrupted socket write would close the connection
+	private void interrupt(Running request) {
+		synchronized (request) {
+			request.cancelled = true;
+			if (request.thread != null) {
+				synchronized (out) {
+					request.thread.interrupt();
+				}
+			}
+		}
+	}
+	
+	//	Once the client has stopped sending, a subscription would otherwise park until the next change is pushed
+	public void cancelSubscriptions() {
+		for (Running request : running.values()) {
+			if (request.subscription) {
+				interrupt(request);
+			}
+		}
+	}
+	
+	public int getInFlight() {
+		return running.size();
+	}
+	
+	//	Lets the running requests finish and write their responses, then stops
+	public void close() {
+		workers.shutdown();
+		try {
+			while (!workers.awaitTermination(1, TimeUnit.SECONDS)) {
+				if (out.checkError()) {
+					for (Running request : running.values()) {
+						interrupt(request);
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			workers.shutdownNow();
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,288 @@
+package com.csmckelvey.vrhq.server;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.csmckelvey.vrhq.core.VRHQLogger;
+
+//	Runs commands on a bounded pool so a hung ping or traceroute can only ever hold one worker
+//	Every command gets a timeout, after which it is destroyed and then forcibly destroyed
+//	When a shell pool is given, commands run on one of its idle shells and only fall back to starting a process when none is free
+public class VRHQProcessExecutor {
+	
+	private static final long DESTROY_GRACE_MILLIS = 2000;
+	
+	private final ThreadPoolExecutor workers;
+	private final ScheduledExecutorService watchdog;
+	private final Set<Process> running = ConcurrentHashMap.newKeySet();
+	private final VRHQShellPool shells;
+	private final AtomicLong execFallbacks = new AtomicLong();
+	
+	private static VRHQLogger logger = null;
+	
+	private static VRHQServerLogger requestLogger = VRHQServerLogger.getLogger();
+
+	static {
+		logger = VRHQLogger.getLogger();
+	}
+	
+	public VRHQProcessExecutor(int threads, int queueSize) {
+		this(threads, queueSize, null);
+	}
+	
+	public VRHQProcessExecutor(int threads, int queueSize, VRHQShellPool shells) {
+		this.shells = shells;
+		AtomicInteger threadNumber = new AtomicInteger();
+		workers = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(queueSize), 
+				runnable -> {
+					Thread thread = new Thread(runnable, "vrhq-exec-" + threadNumber.getAndIncrement());
+					thread.setDaemon(true);
+					return thread;
+				});
+		workers.allowCoreThreadTimeOut(true);
+		
+		watchdog = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "vrhq-exec-watchdog");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+	
+	//	Output lines from stdout and stderr are passed to the handler one at a time, never concurrently
+	//	Cancelling the returned future kills the process, the handler still gets onComplete
+	public CompletableFuture<VRHQProcessResult> submit(String[] command, long timeoutMillis, VRHQOutputHandler handler) {
+		CompletableFuture<VRHQProcessResult> future = new CompletableFuture<>();
+		
+		try {
+			workers.execute(() -> run(command, timeoutMillis, handler, future));
+		} catch (RejectedExecutionException e) {
+			future.completeExceptionally(e);
+		}
+		
+		return future;
+	}
+	
+	private void run(String[] command, long timeoutMillis, VRHQOutputHandler handler, CompletableFuture<VRHQProcessResult> future) {
+		//	Cancelled while still queued, the handler is owed its onComplete all the same
+		if (future.isDone()) {
+			synchronized (handler) {
+				handler.onComplete(-1);
+			}
+			return;
+		}
+		
+		long start = System.currentTimeMillis();
+		long startNanos = System.nanoTime();
+		//	Set on the watchdog thread, read here once the command has ended
+		AtomicBoolean timedOut = new AtomicBoolean();
+		int exitCode;
+		
+		VRHQShellPool.Worker shell = shells == null ? null : shells.borrow();
+		if (shell != null) {
+			exitCode = runOnShell(shell, command, timeoutMillis, handler, future, timedOut);
+		}
+		else {
+			if (shells != null) {
+				execFallbacks.incrementAndGet();
+			}
+			exitCode = exec(command, timeoutMillis, handler, future, timedOut);
+		}
+		
+		if (timedOut.get()) {
+			forward(handler, "Command Timed Out After " + timeoutMillis + "ms");
+			exitCode = -1;
+		}
+		
+		VRHQProcessResult result = new VRHQProcessResult(exitCode, timedOut.get(), future.isCancelled(), System.currentTimeMillis() - start);
+		requestLogger.debug("Execution Finished {} {}", command, result);
+		VRHQMetrics.getMetrics().recordStage(VRHQMetrics.STAGE_EXECUTE, startNanos);
+		
+		synchronized (handler) {
+			handler.onComplete(exitCode);
+		}
+		future.complete(result);
+	}
+	
+	private int exec(String[] command, long timeoutMillis, VRHQOutputHandler handler, CompletableFuture<VRHQProcessResult> future, AtomicBoolean timedOut) {
+		Process process = null;
+		ScheduledFuture<?> timeout = null;
+		Thread stderrDrain = null;
+		int exitCode = -1;
+		
+		try {
+			requestLogger.debug("Executing {} ...", command);
+			process = new ProcessBuilder(command).start();
+			running.add(process);
+			
+			Process started = process;
+			future.whenComplete((result, t) -> {
+				if (future.isCancelled()) {
+					kill(started);
+				}
+			});
+			
+			if (timeoutMillis > 0) {
+				timeout = watchdog.schedule(() -> {
+					timedOut.set(true);
+					kill(started);
+				}, timeoutMillis, TimeUnit.MILLISECONDS);
+			}
+			
+			stderrDrain = Thread.ofVirtual().name("vrhq-exec-stderr").start(() -> drain(started.getErrorStream(), handler));
+			drain(process.getInputStream(), handler);
+			stderrDrain.join();
+			
+			exitCode = process.waitFor();
+		} catch (IOException e) {
+			requestLogger.exception(e);
+			forward(handler, "Server Error");
+		} catch (InterruptedException e) {
+			requestLogger.exception(e);
+			kill(process);
+			Thread.currentThread().interrupt();
+		} finally {
+			if (timeout != null) {
+				timeout.cancel(false);
+			}
+			if (process != null) {
+				running.remove(process);
+				process.destroy();
+			}
+		}
+		
+		return exitCode;
+	}
+	
+	//	Same contract as exec, but the command is a child of a shell that is already running
+	//	A command that had to be killed takes its shell with it, the pool starts a new one
+	private int runOnShell(VRHQShellPool.Worker shell, String[] command, long timeoutMillis, VRHQOutputHandler handler, 
+			CompletableFuture<VRHQProcessResult> future, AtomicBoolean timedOut) {
+		ScheduledFuture<?> timeout = null;
+		boolean healthy = false;
+		int exitCode = -1;
+		
+		try {
+			requestLogger.debug("Executing {} On Shell {} ...", command, shell.getPid());
+			long job = shell.getJob() + 1;
+			future.whenComplete((result, t) -> {
+				if (future.isCancelled()) {
+					kill(shell, job);
+				}
+			});
+			
+			if (timeoutMillis > 0) {
+				timeout = watchdog.schedule(() -> {
+					timedOut.set(true);
+					kill(shell, job);
+				}, timeoutMillis, TimeUnit.MILLISECONDS);
+			}
+			
+			exitCode = shell.run(command, line -> forward(handler, line));
+			healthy = !timedOut.get() && !future.isCancelled();
+		} catch (IOException e) {
+			//	The shell died under the command, the watchdog destroys it when the command will not die
+			if (!timedOut.get() && !future.isCancelled()) {
+				requestLogger.exception(e);
+				forward(handler, "Server Error");
+			}
+		} finally {
+			if (timeout != null) {
+				timeout.cancel(false);
+			}
+			shells.release(shell, healthy);
+		}
+		
+		return exitCode;
+	}
+	
+	private void drain(InputStream stream, VRHQOutputHandler handler) {
+		try (BufferedReader in = new BufferedReader(new InputStreamReader(stream))) {
+			String line;
+			while ((line = in.readLine()) != null) {
+				forward(handler, line);
+			}
+		} catch (IOException e) {
+			//	The stream is closed under us when the process is killed
+		}
+	}
+	
+	private void forward(VRHQOutputHandler handler, String line) {
+		synchronized (handler) {
+			handler.onOutput(line);
+		}
+	}
+	
+	private void kill(Process process) {
+		if (process == null || !process.isAlive()) {
+			return;
+		}
+		
+		//	Children are killed too, otherwise a grandchild keeps the output pipe open after the parent dies
+		process.descendants().forEach(ProcessHandle::destroy);
+		process.destroy();
+		try {
+			watchdog.schedule(() -> destroyForcibly(process), DESTROY_GRACE_MILLIS, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			destroyForcibly(process);
+		}
+	}
+	
+	//	Only the command is killed, the shell goes too if the command is still there after the grace period
+	private void kill(VRHQShellPool.Worker shell, long job) {
+		shell.killCommand(job, false);
+		try {
+			watchdog.schedule(() -> {
+				if (shell.isBusy(job)) {
+					logger.log("Forcibly Destroying Shell " + shell.getPid());
+					shell.destroy();
+				}
+			}, DESTROY_GRACE_MILLIS, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			shell.destroy();
+		}
+	}
+	
+	private void destroyForcibly(Process process) {
+		process.descendants().forEach(ProcessHandle::destroyForcibly);
+		if (process.isAlive()) {
+			logger.log("Forcibly Destroying Process " + process.pid());
+			process.destroyForcibly();
+		}
+	}
+	
+	public int getActiveCount() {
+		return workers.getActiveCount();
+	}
+	
+	public int getQueuedCount() {
+		return workers.getQueue().size();
+	}
+	
+	//	Commands that were started as a process because every shell was busy
+	public long getExecFallbacks() {
+		return execFallbacks.get();
+	}
+	
+	public void shutdown() {
+		workers.shutdownNow();
+		for (Process process : running) {
+			destroyForcibly(process);
+		}
+		watchdog.shutdownNow();
+	}
+}
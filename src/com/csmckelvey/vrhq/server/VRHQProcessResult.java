@@ -0,0 +1,37 @@
+package com.csmckelvey.vrhq.server;
+
+public class VRHQProcessResult {
+	
+	private final int exitCode;
+	private final boolean timedOut;
+	private final boolean cancelled;
+	private final long durationMillis;
+	
+	public VRHQProcessResult(int exitCode, boolean timedOut, boolean cancelled, long durationMillis) {
+		this.exitCode = exitCode;
+		this.timedOut = timedOut;
+		this.cancelled = cancelled;
+		this.durationMillis = durationMillis;
+	}
+	
+	public int getExitCode() {
+		return exitCode;
+	}
+	
+	public boolean isTimedOut() {
+		return timedOut;
+	}
+	
+	public boolean isCancelled() {
+		return cancelled;
+	}
+	
+	public long getDurationMillis() {
+		return durationMillis;
+	}
+	
+	@Override
+	public String toString() {
+		return "exitCode=" + exitCode + " timedOut=" + timedOut + " cancelled=" + cancelled + " duration=" + durationMillis + "ms";
+	}
+}
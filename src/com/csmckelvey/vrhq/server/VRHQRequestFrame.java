@@ -0,0 +1,85 @@
+package com.csmckelvey.vrhq.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+
+import com.csmckelvey.vrhq.core.VRHQRequest;
+import com.google.gson.JsonParseException;
+
+//	A VRHQRequest plus the transport options the client sent next to it
+//	Old clients only send the request fields, so every option defaults to the old behaviour
+public class VRHQRequestFrame {
+	
+	private final VRHQRequest request;
+	private final boolean stream;
+	private final boolean refresh;
+	private final boolean cancel;
+	private final String id;
+	private final List<VRHQRequestFrame> batch;
+	
+	public VRHQRequestFrame(VRHQRequest request, boolean stream, boolean refresh, boolean cancel) {
+		this(request, stream, refresh, cancel, null, null);
+	}
+	
+	public VRHQRequestFrame(VRHQRequest request, boolean stream, boolean refresh, boolean cancel, String id, List<VRHQRequestFrame> batch) {
+		this.request = request;
+		this.stream = stream;
+		this.refresh = refresh;
+		this.cancel = cancel;
+		this.id = id;
+		this.batch = batch == null ? null : Collections.unmodifiableList(batch);
+	}
+	
+	public static VRHQRequestFrame decode(String line) {
+		byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+		try {
+			VRHQRequestFrame frame = new VRHQJsonFrameDecoder(new ByteArrayInputStream(bytes), bytes.length + 1).read();
+			if (frame == null) {
+				throw new JsonParseException("Empty request");
+			}
+			return frame;
+		} catch (IOException e) {
+			throw new JsonParseException(e);
+		}
+	}
+	
+	public VRHQRequest getRequest() {
+		return request;
+	}
+	
+	public boolean isStream() {
+		return stream;
+	}
+	
+	//	Skip any cached result for this request and run it again
+	public boolean isRefresh() {
+		return refresh;
+	}
+	
+	//	Sent while a request is running to stop it, in pipelined mode the id says which one
+	public boolean isCancel() {
+		return cancel;
+	}
+	
+	//	Set by pipelining clients, every response frame for this request carries it back
+	public String getId() {
+		return id;
+	}
+	
+	//	A tagged or batch request switches the connection to pipelined mode
+	public boolean isPipelined() {
+		return id != null || batch != null;
+	}
+	
+	public boolean isBatch() {
+		return batch != null;
+	}
+	
+	//	The requests carried by a batch frame, each with its own id
+	public List<VRHQRequestFrame> getBatch() {
+		return batch;
+	}
+}
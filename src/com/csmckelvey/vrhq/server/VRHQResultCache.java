@@ -0,0 +1,206 @@
+package com.csmckelvey.vrhq.server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import com.csmckelvey.vrhq.core.VRHQLogger;
+
+//	Caches the output of read only commands for a per command TTL
+//	Identical requests that arrive while one is running wait for it and share its output
+//	Entries are per transport, the same command and message do not mean the same thing on TCP and Bluetooth
+public class VRHQResultCache {
+	
+	private final Map<Integer, Long> ttls = new ConcurrentHashMap<>();
+	private final Map<String, CompletableFuture<CachedResult>> entries = new ConcurrentHashMap<>();
+	
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong coalesced = new AtomicLong();
+	
+	private static VRHQLogger logger = null;
+	
+	static {
+		logger = VRHQLogger.getLogger();
+	}
+	
+	static class CachedResult {
+		final List<String> lines;
+		final int exitCode;
+		final long expiresAt;
+		
+		CachedResult(List<String> lines, int exitCode, long expiresAt) {
+			this.lines = lines;
+			this.exitCode = exitCode;
+			this.expiresAt = expiresAt;
+		}
+	}
+	
+	public void setTtl(int command, long ttlMillis) {
+		if (ttlMillis > 0) {
+			ttls.put(command, ttlMillis);
+		}
+		else {
+			ttls.remove(command);
+		}
+		invalidate(command);
+	}
+	
+	public long getTtl(int command) {
+		Long ttl = ttls.get(command);
+		return ttl == null ? 0 : ttl;
+	}
+	
+	//	Runs the computation, or replays a cached / in flight result for the same command and arguments on the same transport
+	public void run(int command, int transport, String arguments, Consumer<VRHQOutputHandler> computation, VRHQOutputHandler handler) {
+		long ttl = getTtl(command);
+		if (ttl <= 0) {
+			computation.accept(handler);
+			return;
+		}
+		
+		String key = key(command, transport, arguments);
+		CompletableFuture<CachedResult> mine = new CompletableFuture<>();
+		CompletableFuture<CachedResult> current;
+		
+		while (true) {
+			current = entries.get(key);
+			if (current == null) {
+				if (entries.putIfAbsent(key, mine) == null) {
+					current = mine;
+					break;
+				}
+			}
+			else if (isStale(current)) {
+				if (entries.replace(key, current, mine)) {
+					current = mine;
+					break;
+				}
+			}
+			else {
+				break;
+			}
+		}
+		
+		if (current == mine) {
+			misses.incrementAndGet();
+			compute(key, ttl, mine, computation, handler);
+			return;
+		}
+		
+		if (current.isDone()) {
+			hits.incrementAndGet();
+		}
+		else {
+			coalesced.incrementAndGet();
+		}
+		
+		CachedResult result;
+		try {
+			result = current.join();
+		} catch (CompletionException e) {
+			//	The leader failed, run it ourselves rather than replaying nothing
+			computation.accept(handler);
+			return;
+		}
+		
+		for (String line : result.lines) {
+			handler.onOutput(line);
+		}
+		handler.onComplete(result.exitCode);
+	}
+	
+	//	True when a request would be answered from a finished result without running anything
+	public boolean isCached(int command, int transport, String arguments) {
+		if (getTtl(command) <= 0) {
+			return false;
+		}
+		
+		CompletableFuture<CachedResult> current = entries.get(key(command, transport, arguments));
+		return current != null && current.isDone() && !isStale(current);
+	}
+	
+	//	The caller that wins the race still sees its output live, everything is recorded for the followers
+	private void compute(String key, long ttl, CompletableFuture<CachedResult> future, Consumer<VRHQOutputHandler> computation, VRHQOutputHandler handler) {
+		List<String> lines = new ArrayList<>();
+		int[] exitCode = { -1 };
+		
+		try {
+			computation.accept(new VRHQOutputHandler() {
+				@Override
+				public void onOutput(String line) {
+					lines.add(line);
+					handler.onOutput(line);
+				}
+				
+				@Override
+				public void onComplete(int code) {
+					exitCode[0] = code;
+				}
+			});
+		} catch (RuntimeException e) {
+			entries.remove(key, future);
+			future.completeExceptionally(e);
+			throw e;
+		}
+		
+		CachedResult result = new CachedResult(Collections.unmodifiableList(lines), exitCode[0], System.currentTimeMillis() + ttl);
+		
+		//	Failures are shared with whoever was already waiting but never served to later requests
+		if (exitCode[0] != 0) {
+			entries.remove(key, future);
+		}
+		future.complete(result);
+		handler.onComplete(exitCode[0]);
+	}
+	
+	private boolean isStale(CompletableFuture<CachedResult> future) {
+		if (!future.isDone()) {
+			return false;
+		}
+		if (future.isCompletedExceptionally()) {
+			return true;
+		}
+		return future.join().expiresAt <= System.currentTimeMillis();
+	}
+	
+	public void invalidate(int command) {
+		String prefix = command + "|";
+		entries.keySet().removeIf(key -> key.startsWith(prefix));
+	}
+	
+	public void invalidate(int command, int transport, String arguments) {
+		entries.remove(key(command, transport, arguments));
+	}
+	
+	public void invalidateAll() {
+		entries.clear();
+		logger.log("Result Cache Cleared");
+	}
+	
+	public long getHits() {
+		return hits.get();
+	}
+	
+	public long getMisses() {
+		return misses.get();
+	}
+	
+	public long getCoalesced() {
+		return coalesced.get();
+	}
+	
+	public int size() {
+		return entries.size();
+	}
+	
+	private static String key(int command, int transport, String arguments) {
+		return command + "|" + transport + "|" + (arguments == null ? "" : arguments);
+	}
+}
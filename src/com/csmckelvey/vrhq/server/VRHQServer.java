@@ -1,33 +1,79 @@
 package com.csmckelvey.vrhq.server;
 
-import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.net.ServerSocket;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
 import java.net.Socket;
+import java.net.UnknownHostException;
+import java.util.Arrays;
 import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import javax.microedition.io.StreamConnection;
 
 import com.csmckelvey.vrhq.core.Constants;
 import com.csmckelvey.vrhq.core.VRHQLogger;
 import com.csmckelvey.vrhq.core.VRHQRequest;
 import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.intel.bluetooth.BlueCoveImpl;
 
 public class VRHQServer {
 	
 	private int port = -1;
+	private int tcpMaxConnections = 64;
+	private int bluetoothMaxSessions = 7;
+	private int pipelineMaxInFlight = 8;
+	private boolean tcpEnabled = false;
+	private boolean nativeNetworkInfo = true;
+	private long defaultCommandTimeout = 30000;
+	private long[] commandTimeouts = null;
+	private long deviceRefreshInterval = 0;
+	private long statusSampleInterval = 0;
 	private final boolean deployed = false;	
 
 	private static VRHQLogger logger = null;
 
 	private Properties props = null;
+	private Properties overrides = new Properties();
 	private String blutoothUUID = null;
 	private String[] commandArray = null;	
 	private String clientBTAddress = null;
 	private String serverBTAddress = null;
 	private VRHQBluetooth bluetooth = new VRHQBluetooth();
+	private VRHQTcpListener tcpListener = null;
+	private VRHQBluetoothListener bluetoothListener = null;
+	private VRHQNetworkInfo networkInfo = new VRHQNetworkInfo();
+	private VRHQStatusSampler statusSampler = null;
+	private VRHQNetworkScanner networkScanner = null;
+	private VRHQWifiScanner wifiScanner = null;
+	private long wifiScanInterval = 0;
+	private VRHQChangeWatcher changeWatcher = null;
+	private VRHQResultCache resultCache = new VRHQResultCache();
+	private VRHQProcessExecutor processExecutor = null;
+	private VRHQShellPool shellPool = null;
+	private VRHQJournal journal = null;
+	private boolean historyAllClients = false;
+	private VRHQCodec codec = new VRHQCodec();
+	private VRHQAdmissionControl admission = new VRHQAdmissionControl(Integer.MAX_VALUE, 0, 0, 0, 0);
+	
+	private static final Gson gson = new Gson();
+	private static final String INVALID_REQUEST = "Invalid Request";
+	private static final String SERVER_BUSY = "Server Busy";
+	private static final String METRICS_REQUEST = "metrics";
+	private static final String HISTORY_ALL_CLIENTS = "all";
+	private static final int DEFAULT_HISTORY_MINUTES = 5;
+
+	private static VRHQServerLogger requestLogger = VRHQServerLogger.getLogger();
 
 	static {
 		logger = VRHQLogger.getLogger();
@@ -45,23 +91,127 @@ public class VRHQServer {
 		
 		//These threads should only contain connection specific code
 		//These should use 'helper' objects which can be used by both threads for other code/functionality
-		logger.log("Bluetooth Server Started!");
-		while (true) {
-			server.startListeningBluetooth();
-			//server.startListening(port);
-		}
+		Runtime.getRuntime().addShutdownHook(new Thread(server::shutdown, "vrhq-shutdown"));
 		
+		server.start();
+		server.startListeningBluetooth();
 	}
 	
+	public void shutdown() {
+		logger.log("Shutting Down VRHQServer...", 0, 0, true);
+		//	Subscribers are let go first so their connections close cleanly before the listeners stop
+		if (changeWatcher != null) {
+			changeWatcher.shutdown();
+		}
+		if (tcpListener != null) {
+			tcpListener.shutdown();
+		}
+		if (bluetoothListener != null) {
+			bluetoothListener.shutdown();
+		}
+		bluetooth.shutdown();
+		if (statusSampler != null) {
+			statusSampler.shutdown();
+		}
+		if (networkScanner != null) {
+			networkScanner.shutdown();
+		}
+		if (wifiScanner != null) {
+			wifiScanner.shutdown();
+		}
+		if (processExecutor != null) {
+			processExecutor.shutdown();
+		}
+		if (shellPool != null) {
+			shellPool.shutdown();
+			logger.log("Shell Workers       | served=" + shellPool.getServed() + " exec=" + processExecutor.getExecFallbacks() 
+					+ " spawned=" + shellPool.getSpawned() + " recycled=" + shellPool.getRecycled(), 1, 0);
+		}
+		if (journal != null) {
+			journal.shutdown();
+			logger.log("Journal             | written=" + journal.getWritten() + " dropped=" + journal.getDropped(), 1, 0);
+		}
+		logger.log("Result Cache        | hits=" + resultCache.getHits() + " misses=" + resultCache.getMisses() + " coalesced=" + resultCache.getCoalesced(), 1, 0);
+		logger.log("Admission           | admitted=" + admission.getAdmitted() + " busy=" + admission.getRejected() + " rateLimited=" + admission.getLimited(), 1, 0);
+		logger.log("Shutting Down VRHQServer Complete!", 0, 1, true);
+		requestLogger.shutdown();
+	}
+	
+	//	Everything except the transports, the benchmarks call this before they have a Bluetooth stack to bring up
+	//	Once the properties are in nothing here depends on anything else, so the rest runs side by side
 	public void init() {
 		logger.log("Initializing VRHQServer...", 0, 0, true);
+		VRHQStartup startup = new VRHQStartup();
 		
-		loadProperties();
-		buildCommandMap();
+		startup.run("properties", this::loadProperties);
+		bluetooth.addDeviceListener(changeWatcher);
+		startup.start("commands", () -> {
+			buildCommandMap();
+			warmUpCommands();
+		});
+		startup.start("codec", this::warmUpCodec);
+		startup.start("sampler", () -> statusSampler.start(statusSampleInterval));
+		startup.start("wifi", () -> wifiScanner.start(wifiScanInterval));
+		if (shellPool != null) {
+			startup.start("shells", shellPool::start);
+		}
+		if (journal != null) {
+			startup.start("journal", () -> {
+				if (!journal.start()) {
+					throw new IOException("Journal Disabled");
+				}
+			});
+		}
 		
+		if (!startup.await("journal")) {
+			journal = null;
+		}
+		startup.awaitAll();
+		logger.log("Init Timings        | " + startup.describe(), 1, 0);
 		logger.log("Initializing VRHQServer Complete!", 0, 1, true);
 	}
 	
+	//	Brings the Bluetooth stack and service up while the TCP port is bound, then starts accepting TCP clients
+	//	Ready is only reported once both transports are up, a transport that failed keeps retrying in its listener,
+	//	the Bluetooth one reopening the service on its next accept and the TCP one binding the port again
+	public void start() {
+		logger.log("Starting Transports...", 0, 0, true);
+		VRHQStartup startup = new VRHQStartup();
+		
+		//	The emulator binds a Bluetooth stack to the thread, the phase joins the caller's
+		Object stack = BlueCoveImpl.getCurrentThreadBluetoothStackID();
+		startup.start("bluetooth", () -> {
+			if (stack != null) {
+				BlueCoveImpl.setThreadBluetoothStackID(stack);
+			}
+			if (startup.run("bluetooth.stack", bluetooth::initLocalDevice)) {
+				startup.run("bluetooth.service", () -> bluetooth.openService(blutoothUUID));
+			}
+		});
+		if (tcpEnabled) {
+			tcpListener = new VRHQTcpListener(port, tcpMaxConnections, this::handleTcpConnection);
+			startup.start("tcp", tcpListener::bind);
+		}
+		
+		startup.awaitAll();
+		boolean bluetoothUp = bluetooth.hasNotifier(blutoothUUID);
+		boolean tcpUp = !tcpEnabled || tcpListener.isBound();
+		if (tcpListener != null) {
+			tcpListener.start();
+		}
+		
+		logger.log("Start Timings       | " + startup.describe(), 1, 0);
+		if (bluetoothUp && tcpUp) {
+			logger.log("VRHQServer Ready, " + ManagementFactory.getRuntimeMXBean().getUptime() + "ms After Launch", 0, 1, true);
+		}
+		else {
+			logger.log("VRHQServer Not Ready, " + (bluetoothUp ? "" : "Bluetooth ") + (tcpUp ? "" : "TCP ") + "Failed To Start", 0, 1, true);
+		}
+		
+		//	Left until clients can connect, an inquiry competes with the service for the radio
+		bluetooth.startDeviceRefresh(deviceRefreshInterval);
+	}
+	
 	private void loadProperties() {
 		logger.log("Loading Properties...", 0, 0, true);
 		
@@ -80,9 +230,58 @@ public class VRHQServer {
 			}
 			
 			props.load(input);
+			props.putAll(overrides);
 			
 			blutoothUUID = props.getProperty("UUID");
 			port = Integer.parseInt(props.getProperty("port"));
+			tcpEnabled = "true".equals(props.getProperty("tcpEnabled"));
+			tcpMaxConnections = Integer.parseInt(props.getProperty("tcpMaxConnections", "64"));
+			pipelineMaxInFlight = Integer.parseInt(props.getProperty("pipelineMaxInFlight", "8"));
+			bluetoothMaxSessions = Integer.parseInt(props.getProperty("bluetoothMaxSessions", "7"));
+			nativeNetworkInfo = !"exec".equals(props.getProperty("networkInfoProvider"));
+			codec = new VRHQCodec(Integer.parseInt(props.getProperty("maxFrameSize", String.valueOf(VRHQCodec.DEFAULT_MAX_FRAME_SIZE))), 
+					Integer.parseInt(props.getProperty("compressionThreshold", String.valueOf(VRHQCodec.DEFAULT_COMPRESSION_THRESHOLD))));
+			defaultCommandTimeout = Long.parseLong(props.getProperty("commandTimeout", "30000"));
+			//	Windows has no /bin/sh, its commands are always exec'd
+			int shellWorkers = Integer.parseInt(props.getProperty("shellWorkers", "4"));
+			if (shellWorkers > 0 && !"0".equals(props.getProperty("platform"))) {
+				shellPool = new VRHQShellPool(props.getProperty("shellPath", VRHQShellPool.DEFAULT_SHELL), shellWorkers, 
+						Integer.parseInt(props.getProperty("shellWorkerMaxCommands", "500")), 
+						Long.parseLong(props.getProperty("shellHealthCheckInterval", "60000")));
+			}
+			processExecutor = new VRHQProcessExecutor(Integer.parseInt(props.getProperty("executorThreads", "4")), 
+					Integer.parseInt(props.getProperty("executorQueueSize", "16")), shellPool);
+			resultCache.setTtl(Constants.SC_STATUS, Long.parseLong(props.getProperty("cacheTtl.STATUS", "0")));
+			resultCache.setTtl(Constants.SC_NETWORK_INFO, Long.parseLong(props.getProperty("cacheTtl.NETWORK_INFO", "0")));
+			resultCache.setTtl(Constants.SC_LIST_NETWORKS, Long.parseLong(props.getProperty("cacheTtl.LIST_NETWORKS", "0")));
+			admission = new VRHQAdmissionControl(Integer.parseInt(props.getProperty("admissionMaxActive", "8")), 
+					Integer.parseInt(props.getProperty("admissionMaxQueued", "32")), 
+					Long.parseLong(props.getProperty("admissionQueueTimeout", "5000")), 
+					Double.parseDouble(props.getProperty("clientRate", "0")), 
+					Double.parseDouble(props.getProperty("clientBurst", "10")));
+			bluetooth.setDeviceRegistryTtl(Long.parseLong(props.getProperty("deviceRegistryTtl", "0")));
+			deviceRefreshInterval = Long.parseLong(props.getProperty("deviceRefreshInterval", "0"));
+			statusSampleInterval = Long.parseLong(props.getProperty("statusSampleInterval", "5000"));
+			statusSampler = new VRHQStatusSampler(Integer.parseInt(props.getProperty("statusHistorySize", "720")));
+			networkScanner = new VRHQNetworkScanner(Integer.parseInt(props.getProperty("scanParallelism", "256")), 
+					Integer.parseInt(props.getProperty("scanProbeTimeout", "1000")), 
+					Integer.parseInt(props.getProperty("scanMaxHosts", "1024")), 
+					VRHQNetworkScanner.parsePorts(props.getProperty("scanPorts")));
+			wifiScanInterval = Long.parseLong(props.getProperty("wifiScanInterval", "30000"));
+			wifiScanner = new VRHQWifiScanner("0".equals(props.getProperty("platform")), props.getProperty("wifiInterface"), 
+					Long.parseLong(props.getProperty("wifiScanTimeout", "20000")), Long.parseLong(props.getProperty("wifiScanExpiry", "90000")));
+			changeWatcher = new VRHQChangeWatcher(Long.parseLong(props.getProperty("subscriptionCoalesce", "100")), 
+					Long.parseLong(props.getProperty("networkWatchInterval", "1000")), 
+					Integer.parseInt(props.getProperty("maxSubscribers", "64")));
+			String journalDirectory = props.getProperty("journalDirectory", "journal");
+			if (!journalDirectory.isBlank()) {
+				journal = new VRHQJournal(journalDirectory, Integer.parseInt(props.getProperty("journalSegmentSize", "8388608")), 
+						Integer.parseInt(props.getProperty("journalMaxSegments", "16")), 
+						Integer.parseInt(props.getProperty("journalPayloadLimit", "4096")), 
+						Integer.parseInt(props.getProperty("journalQueueSize", "4096")));
+			}
+			historyAllClients = "true".equals(props.getProperty("historyAllClients"));
+			bluetooth.setFriendlyNameStaleness(Long.parseLong(props.getProperty("friendlyNameStaleness", "3600000")));
 			clientBTAddress = props.getProperty("clientBluetoothAddress");
 			serverBTAddress = props.getProperty("serverBluetoothAddress");
 			
@@ -94,6 +293,9 @@ public class VRHQServer {
 			}
 			VRHQLogger.setOutputFileName(props.getProperty("outputFileName"));
 			VRHQLogger.setExceptionOutputFileName(props.getProperty("exceptionOutputFileName"));
+			requestLogger.configure("true".equals(props.getProperty("debug")), "true".equals(props.getProperty("outputToFile")), 
+					props.getProperty("outputFileName"), props.getProperty("exceptionOutputFileName"), 
+					Integer.parseInt(props.getProperty("logBufferSize", "4096")));
 			
 			logger.log("IP Address          | " + props.getProperty("ipaddress"), 1, 0);
 			logger.log("Debug Output        | " + props.getProperty("debug"), 1, 0);
@@ -102,8 +304,37 @@ public class VRHQServer {
 			logger.log("Bluetooth UUID      | " + blutoothUUID, 1, 0);
 			logger.log("Output To File      | " + props.getProperty("outputToFile"), 1, 0);
 			logger.log("TCP Port Number     | " + port, 1, 0);
+			logger.log("TCP Enabled         | " + tcpEnabled, 1, 0);
+			logger.log("TCP Max Connections | " + tcpMaxConnections, 1, 0);
+			logger.log("BT Max Sessions     | " + bluetoothMaxSessions, 1, 0);
+			logger.log("Pipeline In Flight  | " + pipelineMaxInFlight, 1, 0);
+			logger.log("Admission           | active " + props.getProperty("admissionMaxActive", "8") + " queued " + props.getProperty("admissionMaxQueued", "32") 
+					+ " wait " + props.getProperty("admissionQueueTimeout", "5000") + "ms", 1, 0);
+			logger.log("Client Rate         | " + props.getProperty("clientRate", "0") + "/s (burst " + props.getProperty("clientBurst", "10") + ")", 1, 0);
+			logger.log("Network Info Source | " + (nativeNetworkInfo ? "native" : "exec"), 1, 0);
+			logger.log("Cache TTL (ms)      | STATUS=" + resultCache.getTtl(Constants.SC_STATUS) 
+					+ " NETWORK_INFO=" + resultCache.getTtl(Constants.SC_NETWORK_INFO) 
+					+ " LIST_NETWORKS=" + resultCache.getTtl(Constants.SC_LIST_NETWORKS), 1, 0);
+			logger.log("Executor Threads    | " + props.getProperty("executorThreads", "4") + " (queue " + props.getProperty("executorQueueSize", "16") + ")", 1, 0);
+			logger.log("Shell Workers       | " + (shellPool == null ? "off" : props.getProperty("shellWorkers", "4") + " (recycled every " 
+					+ props.getProperty("shellWorkerMaxCommands", "500") + " commands, checked every " + props.getProperty("shellHealthCheckInterval", "60000") + "ms)"), 1, 0);
+			logger.log("Max Frame Size      | " + codec.getMaxFrameSize() + " bytes", 1, 0);
+			logger.log("Compress Above      | " + codec.getCompressionThreshold() + " bytes", 1, 0);
+			logger.log("Command Timeout     | " + defaultCommandTimeout + "ms", 1, 0);
 			logger.log("Output File Name    | " + props.getProperty("outputFileName"), 1, 0);
 			logger.log("Exception File Name | " + props.getProperty("exceptionOutputFileName"), 1, 0);
+			logger.log("Device Registry TTL | " + props.getProperty("deviceRegistryTtl", "0") + "ms", 1, 0);
+			logger.log("Device Refresh      | " + deviceRefreshInterval + "ms", 1, 0);
+			logger.log("Status Sampling     | " + statusSampleInterval + "ms (" + props.getProperty("statusHistorySize", "720") + " kept)", 1, 0);
+			logger.log("Network Scan        | " + props.getProperty("scanParallelism", "256") + " at once, " + props.getProperty("scanProbeTimeout", "1000") 
+					+ "ms per probe, ports " + props.getProperty("scanPorts", "22,80,443,445"), 1, 0);
+			logger.log("Wi-Fi Scan          | every " + wifiScanInterval + "ms, networks kept " + props.getProperty("wifiScanExpiry", "90000") + "ms after last seen", 1, 0);
+			logger.log("Subscriptions       | " + props.getProperty("maxSubscribers", "64") + " max, pushed every " + props.getProperty("subscriptionCoalesce", "100") 
+					+ "ms, interfaces polled every " + props.getProperty("networkWatchInterval", "1000") + "ms", 1, 0);
+			logger.log("Journal             | " + (journal == null ? "off" : journalDirectory + ", " + props.getProperty("journalMaxSegments", "16") + " x " 
+					+ props.getProperty("journalSegmentSize", "8388608") + " bytes, payloads up to " + props.getProperty("journalPayloadLimit", "4096") + " bytes"), 1, 0);
+			logger.log("History All Clients | " + (historyAllClients ? "anyone" : "loopback only"), 1, 0);
+			logger.log("Name Staleness      | " + props.getProperty("friendlyNameStaleness", "3600000") + "ms", 1, 0);
 			logger.log("Client BT Address   | " + clientBTAddress, 1, 0);
 			logger.log("Server BT Address   | " + serverBTAddress, 1, 0);
 		} catch (IOException e) {
@@ -152,6 +383,11 @@ public class VRHQServer {
 		logger.log("LIST_NETWORKS      | " + commandArray[Constants.SC_LIST_NETWORKS], 1, 0);
 		logger.log("CONNECT_NETWORK    | " + commandArray[Constants.SC_CONNECT_NETWORK], 1, 0);
 		
+		commandTimeouts = new long[commandArray.length];
+		commandTimeouts[Constants.SC_PING] = Long.parseLong(props.getProperty("commandTimeout.PING", "0"));
+		commandTimeouts[Constants.SC_TRACE] = Long.parseLong(props.getProperty("commandTimeout.TRACE", "0"));
+		commandTimeouts[Constants.SC_NETWORK_INFO] = Long.parseLong(props.getProperty("commandTimeout.NETWORK_INFO", "0"));
+		
 		logger.log("Building Command Map Complete!");
 	}
 	
@@ -185,148 +421,585 @@ public class VRHQServer {
 		logger.log("Bluetooth Client Service Search Completed!");
 	}
 	
-	private void startListening(int port) {
-		Socket socket = null;
-		PrintWriter out = null;
-		BufferedReader in = null;
-		ServerSocket serverSocket = null;
+	//	Benchmarks drive the server from one address as fast as they can, so they swap in their own limits
+	void setAdmissionControl(VRHQAdmissionControl admission) {
+		this.admission = admission;
+	}
+	
+	//	Replaces a setting from config.properties, only takes effect when set before init
+	void overrideProperty(String key, String value) {
+		overrides.setProperty(key, value);
+	}
+	
+	//	The listeners and the run methods are package private so the benchmarks under bench/ can drive them directly
+	void startListening(int port) {
+		tcpListener = new VRHQTcpListener(port, tcpMaxConnections, this::handleTcpConnection);
+		tcpListener.start();
+	}
+	
+	private void handleTcpConnection(Socket socket) throws IOException {
+		VRHQMetrics metrics = VRHQMetrics.getMetrics();
+		PushbackInputStream input = new PushbackInputStream(metrics.countIn(socket.getInputStream(), VRHQMetrics.TRANSPORT_TCP), 1);
+		VRHQFrameDecoder in = codec.newDecoder(input);
+		VRHQFrameEncoder out = codec.newEncoder(metrics.countOut(socket.getOutputStream(), VRHQMetrics.TRANSPORT_TCP));
 		
+		//	"metrics" on a line of its own gets the plain text dump, so a box can be checked with nc
+		int first = input.read();
+		if (first < 0) {
+			return;
+		}
+		input.unread(first);
+		if (Character.isLetter(first)) {
+			String line = in.readText();
+			out.writeText(line != null && METRICS_REQUEST.equalsIgnoreCase(line.trim()) ? metrics.dump() : INVALID_REQUEST);
+			return;
+		}
+		
+		requestLogger.debug("Receiving...");
+		VRHQRequestFrame frame;
 		try {
-			Gson gson = new Gson();
-			VRHQRequest request = null;
-			
-			serverSocket = new ServerSocket(port);
-			
-			while (true) {
-				logger.log("Listening...", 0, 0, true);
-				socket = serverSocket.accept(); 
-				logger.log("Got A Connection From " + socket.getInetAddress(), 0, 0, true);
+			frame = in.read();
+		} catch (VRHQFrameTooLargeException | JsonParseException e) {
+			requestLogger.info("Invalid Request From {}: {}", socket.getInetAddress(), e.getMessage());
+			out.writeText(INVALID_REQUEST);
+			return;
+		}
+		
+		if (frame == null) {
+			requestLogger.debug("Connection Closed Before A Request Was Received");
+			return;
+		}
+		
+		VRHQRequest request = frame.getRequest();
+		requestLogger.info("Request Received From {}: {}", socket.getInetAddress(), request);
+		
+		VRHQPipeline.Dispatcher dispatcher = admit(VRHQMetrics.TRANSPORT_TCP, socket.getInetAddress().getHostAddress(), this::runTcpCommand);
+		
+		//	A tagged first request keeps the connection open for as many requests as the client sends
+		if (frame.isPipelined()) {
+			servePipelined(frame, in, out, dispatcher);
+			return;
+		}
+		
+		VRHQCancelWatcher cancelWatcher = new VRHQCancelWatcher(in, out, request.getCommand() == VRHQServerCommands.SC_SUBSCRIBE);
+		try {
+			respondTcp(frame, out, dispatcher);
+		} finally {
+			cancelWatcher.stop();
+		}
+	}
+	
+	//	Reads requests until the client closes, each one runs concurrently and answers with frames tagged with its id
+	//	Every request on a pipelined connection needs an id, untagged ones could not be matched to their response
+	private void servePipelined(VRHQRequestFrame first, VRHQFrameDecoder in, VRHQFrameEncoder out, VRHQPipeline.Dispatcher dispatcher) throws IOException {
+		VRHQPipeline pipeline = new VRHQPipeline(out, dispatcher, pipelineMaxInFlight);
+		
+		try {
+			VRHQRequestFrame frame = first;
+			while (frame != null && !out.checkError()) {
+				if (frame.isPipelined()) {
+					pipeline.submit(frame);
+				}
+				else {
+					out.writeText(INVALID_REQUEST);
+				}
+				
+				frame = readPipelined(in, out);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			//	Other requests still finish and answer, clients may half close once their last request is sent
+			pipeline.cancelSubscriptions();
+			pipeline.close();
+		}
+	}
+	
+	private VRHQRequestFrame readPipelined(VRHQFrameDecoder in, VRHQFrameEncoder out) throws IOException {
+		while (true) {
+			try {
+				VRHQRequestFrame frame = in.read();
+				if (frame != null && !frame.isCancel()) {
+					requestLogger.info("Pipelined Request {} Received: {}", frame.getId(), frame.getRequest());
+				}
+				return frame;
+			} catch (VRHQFrameTooLargeException | JsonParseException e) {
+				requestLogger.info("Invalid Pipelined Request: {}", e.getMessage());
+				out.writeText(INVALID_REQUEST);
+			} catch (VRHQMalformedFrameException e) {
+				//	Ends the connection like the client closing it, the requests already running still answer
+				requestLogger.info("Invalid Pipelined Request, Ending Connection: {}", e.getMessage());
+				out.writeText(INVALID_REQUEST);
+				return null;
+			}
+		}
+	}
+	
+	private void respondTcp(VRHQRequestFrame frame, VRHQFrameEncoder out, VRHQPipeline.Dispatcher dispatcher) {
+		//TODO
+		//Here I need to do the command lookup and execute that, not the request
+		if (frame.isStream()) {
+			requestLogger.debug("Streaming Response");
+			dispatcher.dispatch(frame, new VRHQStreamWriter(out));
+			return;
+		}
+		
+		VRHQOutputBuffer output = new VRHQOutputBuffer();
+		dispatcher.dispatch(frame, output);
+		String result = output.toString();
+		requestLogger.debug("Sending Response: {}", result);
+		
+		//TODO
+		//Here is where I will invoke the parser to turn the result into a JSON object
+		long start = System.nanoTime();
+		out.writeText(result);
+		VRHQMetrics.getMetrics().recordStage(VRHQMetrics.STAGE_RESPOND, start);
+	}
+	
+	//	Accepts RFCOMM clients on the calling thread until shutdown, each session is served on its own thread
+	//	The emulator binds a Bluetooth stack to the thread, so this runs where the caller set one up
+	void startListeningBluetooth() {
+		bluetoothListener = new VRHQBluetoothListener(bluetooth, blutoothUUID, bluetoothMaxSessions, this::handleBluetoothSession);
+		bluetoothListener.run();
+	}
+	
+	private void handleBluetoothSession(VRHQBluetoothSession session) throws IOException {
+		StreamConnection connection = session.getConnection();
+		VRHQMetrics metrics = VRHQMetrics.getMetrics();
+		VRHQCodec.Session codecSession = codec.negotiate(metrics.countIn(connection.openInputStream(), VRHQMetrics.TRANSPORT_BLUETOOTH), 
+				metrics.countOut(connection.openOutputStream(), VRHQMetrics.TRANSPORT_BLUETOOTH));
+		VRHQFrameDecoder in = codecSession.getDecoder();
+		VRHQFrameEncoder out = codecSession.getEncoder();
+		VRHQPipeline.Dispatcher dispatcher = admit(VRHQMetrics.TRANSPORT_BLUETOOTH, session.getAddress(), this::runBluetoothCommand);
+		session.setBinary(codecSession.isBinary());
+		requestLogger.debug("Bluetooth Session {} Using {} Frames", session, codecSession.isBinary() ? "Binary" : "JSON");
+		
+		try {
+			//	The client may keep the link open and send follow up requests on it
+			while (!out.checkError()) {
+				VRHQRequestFrame frame;
+				try {
+					frame = bluetooth.readRequest(in);
+				} catch (VRHQFrameTooLargeException | JsonParseException e) {
+					requestLogger.info("Invalid Bluetooth Request: {}", e.getMessage());
+					bluetooth.sendResponse(INVALID_REQUEST, out);
+					continue;
+				} catch (VRHQMalformedFrameException e) {
+					requestLogger.info("Invalid Bluetooth Request, Ending Session: {}", e.getMessage());
+					bluetooth.sendResponse(INVALID_REQUEST, out);
+					break;
+				}
 				
-			    in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-			    
-			    if (in != null) {
-			    	String line = null;
-			    	logger.log("Receiving...");
-					if ((line = in.readLine()) != null) {
-						request = gson.fromJson(line, VRHQRequest.class);
+				if (frame == null) {
+					break;
+				}
+				session.countRequest();
+				
+				if (frame.isPipelined()) {
+					servePipelined(frame, in, out, dispatcher);
+					break;
+				}
+				
+				//	A subscription is the last request of its session, the input is read from then on only to notice the client leaving
+				if (frame.isStream() && frame.getRequest().getCommand() == VRHQServerCommands.SC_SUBSCRIBE) {
+					VRHQCancelWatcher cancelWatcher = new VRHQCancelWatcher(in, out, true, bluetoothListener.getWatchers());
+					try {
+						dispatcher.dispatch(frame, new VRHQStreamWriter(out));
+					} finally {
+						cancelWatcher.stop();
 					}
-			    }
-			    
-			    logger.log("Request Received");
-			    logger.log(request.toString(), 1, 0);
-			    logger.log("\n-----------------------------------------------", 0, 1);
-			    
-			    //TODO
-			    //Here I need to do the command lookup and execute that, not the request
-			    String result = executeCommand(request.getMessage());
-			    logger.log("Sending Response", 0, 0, true);
-			    logger.log(result);
-			    
-			    out = new PrintWriter(socket.getOutputStream(), true);
-			    
-			    //TODO
-			    //Here is where I will invoke the parser to turn the result into a JSON object
-			    out.write(result + "\n");
-			    out.flush();
-			    
-			    in.close();
-			    out.close();
-			    socket.close();
+					break;
+				}
+				
+				if (frame.isStream()) {
+					dispatcher.dispatch(frame, new VRHQStreamWriter(out));
+				}
+				else {
+					VRHQOutputBuffer commandOutput = new VRHQOutputBuffer();
+					dispatcher.dispatch(frame, commandOutput);
+					bluetooth.sendResponse(commandOutput.toString(), out);
+				}
 			}
-		} catch (IOException e) {
-			logger.logException(e);
 		} finally {
-			if (out != null) {
-				out.close();
+			out.close();
+		}
+	}
+	
+	void runTcpCommand(VRHQRequestFrame frame, VRHQOutputHandler handler) {
+		VRHQRequest request = frame.getRequest();
+		if (request.getCommand() == VRHQServerCommands.SC_SUBSCRIBE) {
+			subscribe(frame, handler);
+			return;
+		}
+		
+		VRHQOutputHandler measured = measure(VRHQMetrics.TRANSPORT_TCP, request.getCommand(), handler);
+		//	The health check, STATUS, the subnet scan, the Wi-Fi list and the metrics dump never run a process for the request, 
+		//	they are answered the same way on both transports
+		if (request.getCommand() == -1 || request.getCommand() == Constants.SC_STATUS || request.getCommand() == Constants.SC_SCAN_NETWORK 
+				|| request.getCommand() == Constants.SC_LIST_NETWORKS || request.getCommand() == VRHQServerCommands.SC_METRICS) {
+			dispatchBluetoothCommand(request, measured);
+			return;
+		}
+		
+		if (frame.isRefresh()) {
+			resultCache.invalidate(request.getCommand(), VRHQMetrics.TRANSPORT_TCP, request.getMessage());
+		}
+		//	NETWORK_INFO is read in the JVM like it is on Bluetooth and is cached, the message is never run
+		if (request.getCommand() == Constants.SC_NETWORK_INFO) {
+			resultCache.run(request.getCommand(), VRHQMetrics.TRANSPORT_TCP, request.getMessage(), 
+					cached -> dispatchBluetoothCommand(request, cached), measured);
+			return;
+		}
+		resultCache.run(request.getCommand(), VRHQMetrics.TRANSPORT_TCP, request.getMessage(), 
+				cached -> streamCommand(request.getCommand(), request.getMessage(), VRHQMetrics.TRANSPORT_TCP, cached), measured);
+	}
+	
+	void runBluetoothCommand(VRHQRequestFrame frame, VRHQOutputHandler handler) {
+		VRHQRequest request = frame.getRequest();
+		if (request.getCommand() == VRHQServerCommands.SC_SUBSCRIBE) {
+			subscribe(frame, handler);
+			return;
+		}
+		
+		if (frame.isRefresh()) {
+			resultCache.invalidate(request.getCommand(), VRHQMetrics.TRANSPORT_BLUETOOTH, request.getMessage());
+		}
+		resultCache.run(request.getCommand(), VRHQMetrics.TRANSPORT_BLUETOOTH, request.getMessage(), 
+				cached -> dispatchBluetoothCommand(request, cached), 
+				measure(VRHQMetrics.TRANSPORT_BLUETOOTH, request.getCommand(), handler));
+	}
+	
+	//	Subscriptions last as long as the connection and are neither cached nor measured, a buffered response would never be sent
+	private void subscribe(VRHQRequestFrame frame, VRHQOutputHandler handler) {
+		if (!frame.isStream()) {
+			requestLogger.info("Subscription Without A Stream Request");
+			handler.onOutput(INVALID_REQUEST);
+			handler.onComplete(-1);
+			return;
+		}
+		
+		changeWatcher.subscribe(frame.getRequest().getMessage(), handler);
+	}
+	
+	//	Runs the request only once admission control lets it in, otherwise answers at once with a busy response
+	//	so the client can back off instead of waiting on a queue it can not see
+	//	A subscription is admitted like any request but gives its slot back straight away, it spends its life parked
+	//	Everything else, busy replies included, goes into the journal when it completes
+	private VRHQPipeline.Dispatcher admit(int transport, String client, VRHQPipeline.Dispatcher dispatcher) {
+		return (frame, requestHandler) -> {
+			int command = frame.getRequest().getCommand();
+			VRHQOutputHandler handler = command == VRHQServerCommands.SC_SUBSCRIBE || command == VRHQServerCommands.SC_HISTORY 
+					? requestHandler : journal(transport, client, command, requestHandler);
+			boolean inline = isInline(frame, transport);
+			int decision;
+			try {
+				decision = admission.admit(client, command, inline);
+			} catch (InterruptedException e) {
+				requestLogger.info("Request Cancelled While Queued");
+				handler.onComplete(-1);
+				Thread.currentThread().interrupt();
+				return;
 			}
-			if (serverSocket != null) { 
-				try { 
-					serverSocket.close();
-				} 
-				catch (IOException e) { 
-					logger.logException(e);
-				} 
+			
+			if (decision != VRHQAdmissionControl.ADMITTED) {
+				requestLogger.info("{} {} For Command {}", decision == VRHQAdmissionControl.BUSY ? "Busy" : "Rate Limited", client, command);
+				VRHQMetrics.getMetrics().countRejected(transport);
+				handler.onOutput(SERVER_BUSY);
+				handler.onComplete(-1);
+				return;
 			}
-			if (socket != null) { 
-				try { 
-					socket.close(); 
-				} 
-				catch (IOException e) { 
-					logger.logException(e); 
-				} 
+			
+			if (command == VRHQServerCommands.SC_SUBSCRIBE) {
+				admission.release();
+				dispatcher.dispatch(frame, handler);
+				return;
 			}
-			if (in != null) {
-				try { 
-					in.close(); 
-				} 
-				catch (IOException e) { 
-					logger.logException(e);
+			
+			//	Answered here because only admission knows who is asking, and the answer differs per client so it is never cached
+			if (command == VRHQServerCommands.SC_HISTORY) {
+				try {
+					sendHistory(frame.getRequest().getMessage(), transport, client, handler);
+				} finally {
+					admission.release();
 				}
+				return;
 			}
+			
+			try {
+				dispatcher.dispatch(frame, handler);
+			} finally {
+				if (!inline) {
+					admission.release();
+				}
+			}
+		};
+	}
+	
+	//	Requests answered from memory without running anything, they skip the execution slots and are only rate limited
+	//	NETWORK_INFO is read in the JVM unless it is configured to exec, then only a cached answer counts
+	private boolean isInline(VRHQRequestFrame frame, int transport) {
+		VRHQRequest request = frame.getRequest();
+		switch (request.getCommand()) {
+			case -1:
+			case Constants.SC_STATUS:
+			case Constants.SC_LIST_NETWORKS:
+			case VRHQServerCommands.SC_METRICS:
+				return true;
+			case Constants.SC_NETWORK_INFO:
+				return nativeNetworkInfo || (!frame.isRefresh() && resultCache.isCached(request.getCommand(), transport, request.getMessage()));
+			default:
+				return false;
 		}
 	}
 	
-	private void startListeningBluetooth() {
-		logger.log("Starting Bluetooth Listener...");
-		
-		VRHQRequest request = bluetooth.startListeningBluetooth(blutoothUUID);
-		Process commandProcess;
-        String commandOutputRead;
-        StringBuilder commandOutput = new StringBuilder();
-        
-        try {
-        	switch(request.getCommand()) {
-        		case -1:
-        			commandOutput.append("SUCCESS");
-        			logger.log(commandOutput.toString());
-        			break;
-        		case Constants.SC_NETWORK_INFO: 
-        			logger.log("Executing " + commandArray[Constants.SC_NETWORK_INFO]);
-        			commandProcess = Runtime.getRuntime().exec(commandArray[Constants.SC_NETWORK_INFO]);
-                    BufferedReader commandOutputReader = new BufferedReader(new InputStreamReader(commandProcess.getInputStream()));
-                    while ((commandOutputRead = commandOutputReader.readLine()) != null) {
-                        commandOutput.append(commandOutputRead);
-                    }
-                    commandProcess.waitFor();
-                    commandProcess.destroy();
-                    break;
-        		default:
-        			commandOutput.append("Unknown Command Received");
-        			logger.log(commandOutput.toString());
-        			break;
-        	}
-        } catch (Exception e) {
-        	logger.logException(e);
-        }
-        
-        bluetooth.sendResponse(commandOutput.toString(), blutoothUUID);
-        
-		logger.log("Blutooth Listener Completed!");
-	}
-	
-	private String executeCommand(String command) {
-		Process process;
-		StringBuffer output = new StringBuffer();
-
+	//	Records the latency and outcome of the request once its last frame has been handed to the client
+	private VRHQOutputHandler measure(int transport, int command, VRHQOutputHandler handler) {
+		long start = System.nanoTime();
+		return new VRHQOutputHandler() {
+			@Override
+			public void onOutput(String line) {
+				handler.onOutput(line);
+			}
+			
+			@Override
+			public void onComplete(int exitCode) {
+				handler.onComplete(exitCode);
+				VRHQMetrics.getMetrics().recordCommand(transport, command, start, exitCode);
+			}
+		};
+	}
+	
+	//	Keeps as much of the output as the journal stores, nothing is kept at all when there is no journal
+	private VRHQOutputHandler journal(int transport, String client, int command, VRHQOutputHandler handler) {
+		if (journal == null) {
+			return handler;
+		}
+		
+		long start = System.nanoTime();
+		int payloadLimit = journal.getPayloadLimit();
+		StringBuilder payload = new StringBuilder();
+		return new VRHQOutputHandler() {
+			@Override
+			public void onOutput(String line) {
+				synchronized (payload) {
+					if (payload.length() < payloadLimit) {
+						payload.append(line).append('\n');
+					}
+				}
+				handler.onOutput(line);
+			}
+			
+			@Override
+			public void onComplete(int exitCode) {
+				handler.onComplete(exitCode);
+				synchronized (payload) {
+					journal.append(transport, client, command, System.nanoTime() - start, exitCode, payload);
+				}
+			}
+			
+			@Override
+			public boolean checkError() {
+				return handler.checkError();
+			}
+		};
+	}
+	
+	//	One JSON line per journaled request from the last N minutes, oldest first
+	//	A reconnecting client gets its own results back, "N all" returns every client's for incident analysis
+	//	Other clients' output is only given to a local TCP client unless historyAllClients allows anyone
+	private void sendHistory(String message, int transport, String client, VRHQOutputHandler handler) {
+		if (journal == null) {
+			handler.onOutput("Journal Disabled");
+			handler.onComplete(-1);
+			return;
+		}
+		
+		String[] arguments = message == null || message.isBlank() ? new String[0] : message.trim().split("\\s+");
+		long minutes = DEFAULT_HISTORY_MINUTES;
 		try {
-			//TODO
-			//This should stream output not just wait
-			logger.log("Executing ["+command+"] ...");
-			process = Runtime.getRuntime().exec(command);
-			process.waitFor();
-			BufferedReader in = new BufferedReader(new InputStreamReader(process.getInputStream()));
-
-			String line = null;			
-			while ((line = in.readLine()) != null) {
-				System.out.println(line);
-				output.append(line + "\n");
+			if (arguments.length > 0) {
+				minutes = Long.parseLong(arguments[0]);
 			}
-		} catch (Exception e) {
-			logger.logException(e);
-			output.append("Server Error");
+		} catch (NumberFormatException e) {
+			handler.onOutput(INVALID_REQUEST);
+			handler.onComplete(-1);
+			return;
 		}
-
-		return output.toString();
+		boolean allClients = arguments.length > 1 && HISTORY_ALL_CLIENTS.equalsIgnoreCase(arguments[1]);
+		if (allClients && !historyAllClients && !isLoopback(transport, client)) {
+			requestLogger.info("History Of Every Client Refused For {}", client);
+			handler.onOutput("Not Permitted");
+			handler.onComplete(-1);
+			return;
+		}
+		
+		//	A client the transport could not identify only ever sees anonymous records
+		long since = System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(minutes);
+		if (allClients) {
+			journal.readAll(since, record -> handler.onOutput(gson.toJson(record.toJson())));
+		}
+		else {
+			journal.read(since, client, record -> handler.onOutput(gson.toJson(record.toJson())));
+		}
+		handler.onComplete(0);
+	}
+	
+	//	TCP clients are known by their literal address, so this never becomes a DNS lookup
+	private static boolean isLoopback(int transport, String client) {
+		if (transport != VRHQMetrics.TRANSPORT_TCP || client == null) {
+			return false;
+		}
+		try {
+			return InetAddress.getByName(client).isLoopbackAddress();
+		} catch (UnknownHostException e) {
+			return false;
+		}
+	}
+	
+	//	The first request through the dispatcher no longer pays for loading it, only the health check is cheap enough to run here
+	private void warmUpCommands() {
+		dispatchBluetoothCommand(VRHQCodec.newRequest(-1, null), new VRHQOutputBuffer());
+	}
+	
+	//	Loads Gson's adapters, both frame formats and the deflater, so the first client's request is not the one that does it
+	private void warmUpCodec() throws IOException {
+		VRHQRequestFrame.decode("{\"command\":-1,\"message\":\"\",\"stream\":true,\"refresh\":false,\"id\":\"1\",\"batch\":[{\"command\":-1}]}");
+		
+		VRHQFrameEncoder json = codec.newEncoder(OutputStream.nullOutputStream());
+		json.writeText("SUCCESS");
+		json.writeChunk("1", "SUCCESS");
+		json.writeEnd("1", 0);
+		
+		byte[] hello = Arrays.copyOf(VRHQCodec.BINARY_MAGIC, VRHQCodec.BINARY_MAGIC.length + 2);
+		hello[VRHQCodec.BINARY_MAGIC.length] = (byte) VRHQCodec.BINARY_VERSION;
+		hello[VRHQCodec.BINARY_MAGIC.length + 1] = (byte) VRHQCodec.HELLO_DEFLATE;
+		VRHQFrameEncoder binary = codec.negotiate(new ByteArrayInputStream(hello), OutputStream.nullOutputStream()).getEncoder();
+		binary.writeText("SUCCESS".repeat(codec.getCompressionThreshold() / 7 + 1));
+		binary.writeChunk("1", "SUCCESS");
+		binary.writeEnd("1", 0);
+		binary.close();
+	}
+	
+	private void sendMetrics(VRHQOutputHandler handler) {
+		handler.onOutput(VRHQMetrics.getMetrics().dump());
+		handler.onComplete(0);
+	}
+	
+	private void dispatchBluetoothCommand(VRHQRequest request, VRHQOutputHandler handler) {
+		switch(request.getCommand()) {
+			case -1:
+				requestLogger.debug("SUCCESS");
+				handler.onOutput("SUCCESS");
+				handler.onComplete(0);
+				break;
+			case Constants.SC_STATUS:
+				sendStatus(request.getMessage(), handler);
+				break;
+			case Constants.SC_NETWORK_INFO: 
+				if (!nativeNetworkInfo || !collectNetworkInfo(handler)) {
+					streamCommand(Constants.SC_NETWORK_INFO, commandArray[Constants.SC_NETWORK_INFO], VRHQMetrics.TRANSPORT_BLUETOOTH, handler);
+				}
+				break;
+			case Constants.SC_SCAN_NETWORK:
+				networkScanner.scan(request.getMessage(), handler);
+				break;
+			case Constants.SC_LIST_NETWORKS:
+				sendNetworks(request.getMessage(), handler);
+				break;
+			case VRHQServerCommands.SC_METRICS:
+				sendMetrics(handler);
+				break;
+			default:
+				requestLogger.info("Unknown Command Received: {}", request.getCommand());
+				handler.onOutput("Unknown Command Received");
+				handler.onComplete(-1);
+				break;
+		}
+	}
+	
+	//	The latest sample from the status sampler, the message may ask for that many seconds of history as well
+	private void sendStatus(String message, VRHQOutputHandler handler) {
+		long historySeconds = 0;
+		if (message != null && !message.isBlank()) {
+			try {
+				historySeconds = Long.parseLong(message.trim());
+			} catch (NumberFormatException e) {
+				requestLogger.info("Ignoring STATUS History [{}]", message);
+			}
+		}
+		
+		JsonObject status = statusSampler == null ? null : statusSampler.getStatus(historySeconds);
+		if (status == null) {
+			handler.onOutput("Status Unavailable");
+			handler.onComplete(-1);
+			return;
+		}
+		
+		handler.onOutput(gson.toJson(status));
+		handler.onComplete(0);
+	}
+	
+	//	The Wi-Fi networks from the last background scan with the age of the scan, the message may name one BSSID
+	private void sendNetworks(String bssid, VRHQOutputHandler handler) {
+		handler.onOutput(gson.toJson(wifiScanner.getNetworks(bssid)));
+		handler.onComplete(0);
+	}
+	
+	//	Returns false when the JVM could not describe the interfaces so the caller can fall back to exec
+	private boolean collectNetworkInfo(VRHQOutputHandler handler) {
+		String info;
+		try {
+			info = gson.toJson(networkInfo.collect());
+		} catch (IOException e) {
+			requestLogger.exception(e);
+			return false;
+		}
+		
+		handler.onOutput(info);
+		handler.onComplete(0);
+		return true;
+	}
+	
+	//	Blocks until the command finishes on the process executor, interrupting the caller kills the command
+	private int streamCommand(int commandId, String command, int transport, VRHQOutputHandler handler) {
+		if (command == null || command.isBlank()) {
+			requestLogger.info("No Command To Run For {}", commandId);
+			handler.onOutput(INVALID_REQUEST);
+			handler.onComplete(-1);
+			return -1;
+		}
+		
+		CompletableFuture<VRHQProcessResult> execution = processExecutor.submit(command.trim().split("\\s+"), getCommandTimeout(commandId), handler);
+		
+		try {
+			VRHQProcessResult result = execution.get();
+			if (result.isTimedOut()) {
+				VRHQMetrics.getMetrics().countTimeout(transport);
+			}
+			return result.getExitCode();
+		} catch (InterruptedException e) {
+			execution.cancel(true);
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RejectedExecutionException) {
+				requestLogger.info("Executor Busy, Rejected [{}]", command);
+				handler.onOutput(SERVER_BUSY);
+			}
+			else {
+				requestLogger.info("Execution Failed [{}]", command);
+				handler.onOutput("Server Error");
+			}
+			handler.onComplete(-1);
+		}
+		
+		return -1;
+	}
+	
+	private long getCommandTimeout(int commandId) {
+		if (commandId >= 0 && commandId < commandTimeouts.length && commandTimeouts[commandId] > 0) {
+			return commandTimeouts[commandId];
+		}
+		return defaultCommandTimeout;
 	}
 
 	private void showBanner() {
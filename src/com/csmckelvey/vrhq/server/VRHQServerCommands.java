@@ -0,0 +1,16 @@
+package com.csmckelvey.vrhq.server;
+
+//	Command ids only this server knows about, they sit above the ids in Constants so they never collide with a client command
+public class VRHQServerCommands {
+	
+	//	Plain text dump of the latency histograms and transport counters
+	public static final int SC_METRICS = 10;
+	
+	//	Keeps the connection open and pushes interface and Bluetooth device changes as they happen, needs a stream request
+	public static final int SC_SUBSCRIBE = 11;
+	
+	//	Replays journaled requests and results from the last N minutes, the message is "N" or "N all"
+	public static final int SC_HISTORY = 12;
+	
+	private VRHQServerCommands() {}
+}
@@ -0,0 +1,341 @@
+package com.csmckelvey.vrhq.server;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.csmckelvey.vrhq.core.VRHQLogger;
+
+//	Logging for the request path
+//	Callers only copy references into a preallocated ring, the message is formatted and written
+//	on a background thread that batches console and file output. "{}" is replaced by the next argument
+//	When the ring is full records are dropped and counted rather than making the client wait
+//	With debug off nothing reaches the console or the output file, only exceptions are kept, in the exception file
+public class VRHQServerLogger {
+	
+	public static final int DEBUG = 0;
+	public static final int INFO = 1;
+	public static final int ERROR = 2;
+	
+	private static final int BATCH_SIZE = 256;
+	private static final String[] LEVEL_NAMES = { "DEBUG", "INFO ", "ERROR" };
+	
+	private static final VRHQServerLogger instance = new VRHQServerLogger();
+	
+	private volatile int level = INFO;
+	private volatile boolean outputToFile = false;
+	private volatile String outputFileName = null;
+	private volatile String exceptionOutputFileName = null;
+	
+	private Slot[] ring = newRing(4096);
+	private int head = 0;
+	private int size = 0;
+	private long dropped = 0;
+	
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notEmpty = lock.newCondition();
+	
+	private Thread writer = null;
+	private volatile boolean running = false;
+	
+	private static VRHQLogger logger = null;
+	
+	static {
+		logger = VRHQLogger.getLogger();
+	}
+	
+	static class Slot {
+		int level;
+		long time;
+		String pattern;
+		Object arg0;
+		Object arg1;
+		Object arg2;
+		Throwable error;
+		
+		void copyFrom(Slot other) {
+			level = other.level;
+			time = other.time;
+			pattern = other.pattern;
+			arg0 = other.arg0;
+			arg1 = other.arg1;
+			arg2 = other.arg2;
+			error = other.error;
+		}
+		
+		void clear() {
+			pattern = null;
+			arg0 = null;
+			arg1 = null;
+			arg2 = null;
+			error = null;
+		}
+	}
+	
+	private VRHQServerLogger() {}
+	
+	public static VRHQServerLogger getLogger() {
+		return instance;
+	}
+	
+	public void configure(boolean debug, boolean outputToFile, String outputFileName, String exceptionOutputFileName, int capacity) {
+		lock.lock();
+		try {
+			this.level = debug ? DEBUG : ERROR;
+			this.outputToFile = outputToFile;
+			this.outputFileName = outputFileName;
+			this.exceptionOutputFileName = exceptionOutputFileName;
+			if (size == 0 && capacity > 0 && capacity != ring.length) {
+				ring = newRing(capacity);
+				head = 0;
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	public boolean isDebugEnabled() {
+		return level <= DEBUG;
+	}
+	
+	public void debug(String message) {
+		if (level <= DEBUG) {
+			enqueue(DEBUG, message, null, null, null, null);
+		}
+	}
+	
+	public void debug(String pattern, Object arg0) {
+		if (level <= DEBUG) {
+			enqueue(DEBUG, pattern, arg0, null, null, null);
+		}
+	}
+	
+	public void debug(String pattern, Object arg0, Object arg1) {
+		if (level <= DEBUG) {
+			enqueue(DEBUG, pattern, arg0, arg1, null, null);
+		}
+	}
+	
+	public void debug(String pattern, Object arg0, Object arg1, Object arg2) {
+		if (level <= DEBUG) {
+			enqueue(DEBUG, pattern, arg0, arg1, arg2, null);
+		}
+	}
+	
+	public void info(String message) {
+		if (level <= INFO) {
+			enqueue(INFO, message, null, null, null, null);
+		}
+	}
+	
+	public void info(String pattern, Object arg0) {
+		if (level <= INFO) {
+			enqueue(INFO, pattern, arg0, null, null, null);
+		}
+	}
+	
+	public void info(String pattern, Object arg0, Object arg1) {
+		if (level <= INFO) {
+			enqueue(INFO, pattern, arg0, arg1, null, null);
+		}
+	}
+	
+	public void info(String pattern, Object arg0, Object arg1, Object arg2) {
+		if (level <= INFO) {
+			enqueue(INFO, pattern, arg0, arg1, arg2, null);
+		}
+	}
+	
+	//	Exceptions are always recorded, like VRHQLogger.logException
+	public void exception(Throwable error) {
+		enqueue(ERROR, null, null, null, null, error);
+	}
+	
+	public long getDropped() {
+		lock.lock();
+		try {
+			return dropped;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	private void enqueue(int recordLevel, String pattern, Object arg0, Object arg1, Object arg2, Throwable error) {
+		long now = System.currentTimeMillis();
+		
+		lock.lock();
+		try {
+			if (!running) {
+				start();
+			}
+			if (size == ring.length) {
+				dropped++;
+				return;
+			}
+			
+			Slot slot = ring[(head + size) % ring.length];
+			slot.level = recordLevel;
+			slot.time = now;
+			slot.pattern = pattern;
+			slot.arg0 = arg0;
+			slot.arg1 = arg1;
+			slot.arg2 = arg2;
+			slot.error = error;
+			size++;
+			
+			notEmpty.signal();
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	private void start() {
+		running = true;
+		writer = new Thread(this::drain, "vrhq-log-writer");
+		writer.setDaemon(true);
+		writer.start();
+	}
+	
+	private void drain() {
+		Slot[] batch = newRing(BATCH_SIZE);
+		StringBuilder console = new StringBuilder();
+		StringBuilder output = new StringBuilder();
+		StringBuilder exceptions = new StringBuilder();
+		SimpleDateFormat timeFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+		Date date = new Date();
+		
+		while (true) {
+			int count = 0;
+			long droppedSinceLast;
+			
+			lock.lock();
+			try {
+				while (size == 0 && running) {
+					notEmpty.await(1, TimeUnit.SECONDS);
+				}
+				if (size == 0) {
+					return;
+				}
+				
+				while (size > 0 && count < batch.length) {
+					Slot slot = ring[head];
+					batch[count++].copyFrom(slot);
+					slot.clear();
+					head = (head + 1) % ring.length;
+					size--;
+				}
+				
+				droppedSinceLast = dropped;
+				dropped = 0;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			} finally {
+				lock.unlock();
+			}
+			
+			boolean quiet = level > DEBUG;
+			for (int i = 0; i < count; i++) {
+				Slot record = batch[i];
+				date.setTime(record.time);
+				int start = console.length();
+				console.append(timeFormat.format(date)).append(' ').append(LEVEL_NAMES[record.level]).append(' ');
+				
+				if (record.error != null) {
+					StringWriter trace = new StringWriter();
+					record.error.printStackTrace(new PrintWriter(trace));
+					console.append(trace);
+					exceptions.append(console, start, console.length());
+				}
+				else {
+					format(console, record);
+					console.append('\n');
+					output.append(console, start, console.length());
+				}
+				record.clear();
+			}
+			
+			if (droppedSinceLast > 0) {
+				(quiet ? exceptions : console).append("Log buffer full, dropped ").append(droppedSinceLast).append(" record(s)\n");
+			}
+			
+			if (!quiet) {
+				System.out.print(console);
+				if (outputToFile) {
+					append(outputFileName, output);
+				}
+			}
+			append(exceptionOutputFileName, exceptions);
+			
+			console.setLength(0);
+			output.setLength(0);
+			exceptions.setLength(0);
+		}
+	}
+	
+	private static void format(StringBuilder target, Slot record) {
+		String pattern = record.pattern;
+		int argument = 0;
+		int from = 0;
+		int at;
+		
+		while (argument < 3 && (at = pattern.indexOf("{}", from)) >= 0) {
+			target.append(pattern, from, at);
+			Object value = argument == 0 ? record.arg0 : argument == 1 ? record.arg1 : record.arg2;
+			target.append(value instanceof Object[] ? Arrays.toString((Object[]) value) : String.valueOf(value));
+			argument++;
+			from = at + 2;
+		}
+		target.append(pattern, from, pattern.length());
+	}
+	
+	private static void append(String fileName, StringBuilder text) {
+		if (fileName == null || text.length() == 0) {
+			return;
+		}
+		
+		try (Writer out = new BufferedWriter(new FileWriter(fileName, true))) {
+			out.append(text);
+		} catch (IOException e) {
+			logger.logException(e);
+		}
+	}
+	
+	//	Writes out everything still in the ring before returning
+	public void shutdown() {
+		Thread current;
+		lock.lock();
+		try {
+			running = false;
+			current = writer;
+			notEmpty.signal();
+		} finally {
+			lock.unlock();
+		}
+		
+		if (current != null) {
+			try {
+				current.join(5000);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+	
+	private static Slot[] newRing(int capacity) {
+		Slot[] slots = new Slot[capacity];
+		for (int i = 0; i < capacity; i++) {
+			slots[i] = new Slot();
+		}
+		return slots;
+	}
+}
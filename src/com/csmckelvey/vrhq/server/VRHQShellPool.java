@@ -0,0 +1,315 @@
+package com.csmckelvey.vrhq.server;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import com.csmckelvey.vrhq.core.VRHQLogger;
+
+//	Long lived shells that run commands sent down their stdin, so the JVM does not start a process per request
+//	The shell still forks the command itself, what is saved is the JVM's process launch, its pipes and its reaper
+//	Each command's output comes back on the shell's stdout followed by a marker line holding the exit code
+public class VRHQShellPool {
+
+	public static final String DEFAULT_SHELL = "/bin/sh";
+	
+	private static final long HEALTH_CHECK_TIMEOUT_MILLIS = 2000;
+	
+	private final String shell;
+	private final int size;
+	private final int maxCommands;
+	private final long healthCheckMillis;
+	private final BlockingQueue<Worker> idle = new LinkedBlockingQueue<>();
+	private final Set<Worker> workers = ConcurrentHashMap.newKeySet();
+	
+	private final AtomicLong served = new AtomicLong();
+	private final AtomicLong spawned = new AtomicLong();
+	private final AtomicLong recycled = new AtomicLong();
+	
+	private ScheduledExecutorService maintenance = null;
+	private volatile boolean running = false;
+	
+	private static VRHQLogger logger = null;
+	
+	private static VRHQServerLogger requestLogger = VRHQServerLogger.getLogger();
+	
+	static {
+		logger = VRHQLogger.getLogger();
+	}
+	
+	//	One shell process and the pipes to it, used by one command at a time
+	public static class Worker {
+		
+		private final Process process;
+		private final Writer stdin;
+		private final BufferedReader stdout;
+		private final String marker = "VRHQ-END-" + UUID.randomUUID().toString().replace("-", "");
+		private volatile long job = 0;
+		private volatile boolean busy = false;
+		private int commands = 0;
+		
+		Worker(String shell) throws IOException {
+			process = new ProcessBuilder(shell).redirectError(ProcessBuilder.Redirect.DISCARD).start();
+			stdin = new OutputStreamWriter(process.getOutputStream(), StandardCharsets.UTF_8);
+			stdout = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8));
+			
+			//	Our pipe moves to fd 3 and only commands write to it, anything the shell itself prints is not output
+			stdin.write("exec 3>&1 >/dev/null\n");
+		}
+		
+		//	Lines go to the consumer as they arrive, returns the exit code once the marker line is read
+		//	Every argument is single quoted so the request can never become shell syntax, exactly like exec
+		public int run(String[] command, Consumer<String> output) throws IOException {
+			job++;
+			busy = true;
+			
+			//	The subshell keeps the shell's "Terminated" notice for a killed command out of the pipe, it execs the command without forking again
+			StringBuilder script = new StringBuilder("( ");
+			for (String argument : command) {
+				script.append(quote(argument)).append(' ');
+			}
+			//	The command must not read the commands queued behind it, and the marker starts on a line of its own
+			script.append("</dev/null >&3 2>&3 ); printf '\\n%s %d\\n' ").append(marker).append(" $? >&3\n");
+			stdin.write(script.toString());
+			stdin.flush();
+			
+			//	The newline printed before the marker shows up as one empty line, which is not output
+			//	Empty lines are held back one line so that one can be dropped
+			boolean heldEmpty = false;
+			String line;
+			while ((line = stdout.readLine()) != null) {
+				if (line.startsWith(marker)) {
+					commands++;
+					busy = false;
+					return Integer.parseInt(line.substring(marker.length()).trim());
+				}
+				
+				if (heldEmpty) {
+					output.accept("");
+				}
+				heldEmpty = line.isEmpty();
+				if (!heldEmpty) {
+					output.accept(line);
+				}
+			}
+			
+			throw new IOException("Shell " + process.pid() + " Exited");
+		}
+		
+		public long getJob() {
+			return job;
+		}
+		
+		public boolean isBusy(long job) {
+			return busy && this.job == job;
+		}
+		
+		//	Kills whatever the shell is running for this job, the shell itself then prints the marker
+		public void killCommand(long job, boolean forcibly) {
+			if (isBusy(job)) {
+				process.descendants().forEach(forcibly ? ProcessHandle::destroyForcibly : ProcessHandle::destroy);
+			}
+		}
+		
+		public boolean isAlive() {
+			return process.isAlive();
+		}
+		
+		public long getPid() {
+			return process.pid();
+		}
+		
+		public int getCommands() {
+			return commands;
+		}
+		
+		public void destroy() {
+			process.descendants().forEach(ProcessHandle::destroyForcibly);
+			process.destroyForcibly();
+		}
+		
+		private static String quote(String argument) {
+			return "'" + argument.replace("'", "'\\''") + "'";
+		}
+	}
+	
+	public VRHQShellPool(String shell, int size, int maxCommands, long healthCheckMillis) {
+		this.shell = shell;
+		this.size = size;
+		this.maxCommands = maxCommands;
+		this.healthCheckMillis = healthCheckMillis;
+	}
+	
+	//	Starts every worker now so the first requests do not pay for them, false when no shell could be started
+	public synchronized boolean start() {
+		if (running) {
+			return true;
+		}
+		running = true;
+		
+		maintenance = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "vrhq-shell-pool");
+			thread.setDaemon(true);
+			return thread;
+		});
+		
+		for (int i = 0; i < size; i++) {
+			if (!spawn()) {
+				break;
+			}
+		}
+		
+		if (workers.isEmpty()) {
+			logger.log("No Shell Workers Started, Commands Will Be Exec'd");
+			shutdown();
+			return false;
+		}
+		
+		if (healthCheckMillis > 0) {
+			maintenance.scheduleWithFixedDelay(() -> Thread.ofVirtual().name("vrhq-shell-health").start(this::checkHealth),
+					healthCheckMillis, healthCheckMillis, TimeUnit.MILLISECONDS);
+		}
+		logger.log("Started " + workers.size() + " Shell Workers (" + shell + ")");
+		return true;
+	}
+	
+	//	Null when every worker is busy, the caller runs the command the old way instead of waiting
+	public Worker borrow() {
+		Worker worker;
+		while ((worker = idle.poll()) != null) {
+			if (worker.isAlive()) {
+				return worker;
+			}
+			replace(worker);
+		}
+		return null;
+	}
+	
+	//	A worker that failed, was killed mid command or has run maxCommands is replaced rather than reused
+	public void release(Worker worker, boolean healthy) {
+		served.incrementAndGet();
+		if (running && healthy && worker.isAlive() && (maxCommands <= 0 || worker.getCommands() < maxCommands)) {
+			idle.offer(worker);
+		}
+		else {
+			replace(worker);
+		}
+	}
+	
+	//	The new shell is started on the pool's thread so no request ever waits for one
+	private void replace(Worker worker) {
+		if (workers.remove(worker)) {
+			recycled.incrementAndGet();
+			requestLogger.debug("Recycling Shell Worker {} After {} Commands", worker.getPid(), worker.getCommands());
+			worker.destroy();
+		}
+		
+		if (running) {
+			try {
+				maintenance.execute(this::spawn);
+			} catch (RejectedExecutionException e) {
+				//	Shutting down
+			}
+		}
+	}
+	
+	private boolean spawn() {
+		if (!running || workers.size() >= size) {
+			return false;
+		}
+		
+		try {
+			Worker worker = new Worker(shell);
+			workers.add(worker);
+			idle.offer(worker);
+			spawned.incrementAndGet();
+			return true;
+		} catch (IOException e) {
+			logger.log("Shell Worker Could Not Be Started: " + e.getMessage());
+			return false;
+		}
+	}
+	
+	//	Runs a no op on every idle worker, one that does not answer in time is replaced
+	private void checkHealth() {
+		List<Worker> checking = new ArrayList<>();
+		idle.drainTo(checking);
+		
+		for (Worker worker : checking) {
+			long job = worker.getJob() + 1;
+			ScheduledFuture<?> guard = null;
+			boolean healthy = false;
+			try {
+				guard = maintenance.schedule(() -> {
+					if (worker.isBusy(job)) {
+						worker.destroy();
+					}
+				}, HEALTH_CHECK_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+				healthy = worker.run(new String[] { "true" }, line -> {}) == 0;
+			} catch (IOException | RejectedExecutionException e) {
+				requestLogger.info("Shell Worker {} Failed Its Health Check", worker.getPid());
+			} finally {
+				if (guard != null) {
+					guard.cancel(false);
+				}
+			}
+			
+			//	Health checks are not requests
+			if (healthy && running) {
+				idle.offer(worker);
+			}
+			else {
+				replace(worker);
+			}
+		}
+	}
+	
+	public int getSize() {
+		return workers.size();
+	}
+	
+	public int getIdle() {
+		return idle.size();
+	}
+	
+	public long getServed() {
+		return served.get();
+	}
+	
+	public long getSpawned() {
+		return spawned.get();
+	}
+	
+	public long getRecycled() {
+		return recycled.get();
+	}
+	
+	public synchronized void shutdown() {
+		running = false;
+		if (maintenance != null) {
+			maintenance.shutdownNow();
+		}
+		for (Worker worker : workers) {
+			worker.destroy();
+		}
+		workers.clear();
+		idle.clear();
+	}
+}
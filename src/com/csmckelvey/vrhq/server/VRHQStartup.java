@@ -0,0 +1,105 @@
+package com.csmckelvey.vrhq.server;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import com.csmckelvey.vrhq.core.VRHQLogger;
+
+//	Times each startup phase and runs the ones that do not depend on each other at the same time
+//	Phases get their own platform thread, there are only a handful and they mostly wait on the Bluetooth stack or the disk
+public class VRHQStartup {
+
+	private final long startNanos = System.nanoTime();
+	
+	//	Phase name -> how long it took, -1 while it is running, in the order the phases were started
+	private final Map<String, Long> timings = new LinkedHashMap<>();
+	private final Map<String, Boolean> failed = new LinkedHashMap<>();
+	private final Map<String, CompletableFuture<Boolean>> phases = new LinkedHashMap<>();
+	
+	private static VRHQLogger logger = null;
+	
+	static {
+		logger = VRHQLogger.getLogger();
+	}
+	
+	public interface Phase {
+		void run() throws Exception;
+	}
+	
+	//	Runs the phase on the calling thread, false when it threw
+	public boolean run(String name, Phase phase) {
+		long start = System.nanoTime();
+		synchronized (this) {
+			timings.put(name, -1L);
+		}
+		
+		boolean succeeded = true;
+		try {
+			phase.run();
+		} catch (Exception e) {
+			logger.log("Startup Phase " + name + " Failed: " + e.getMessage());
+			logger.logException(e);
+			succeeded = false;
+		}
+		
+		synchronized (this) {
+			timings.put(name, (System.nanoTime() - start) / 1_000_000);
+			failed.put(name, !succeeded);
+		}
+		return succeeded;
+	}
+	
+	public synchronized void start(String name, Phase phase) {
+		CompletableFuture<Boolean> done = new CompletableFuture<>();
+		phases.put(name, done);
+		timings.put(name, -1L);
+		
+		Thread thread = new Thread(() -> done.complete(run(name, phase)), "vrhq-startup-" + name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+	
+	//	False when the phase failed or was never started
+	public boolean await(String name) {
+		CompletableFuture<Boolean> phase;
+		synchronized (this) {
+			phase = phases.get(name);
+		}
+		return phase != null && phase.join();
+	}
+	
+	public boolean awaitAll() {
+		boolean succeeded = true;
+		for (String name : phaseNames()) {
+			succeeded &= await(name);
+		}
+		return succeeded;
+	}
+	
+	public long getElapsedMillis() {
+		return (System.nanoTime() - startNanos) / 1_000_000;
+	}
+	
+	//	"properties 31ms, bluetooth 812ms (failed), ..." for every phase that has finished
+	public synchronized String describe() {
+		StringBuilder text = new StringBuilder();
+		for (Map.Entry<String, Long> timing : timings.entrySet()) {
+			if (timing.getValue() < 0) {
+				continue;
+			}
+			if (text.length() > 0) {
+				text.append(", ");
+			}
+			text.append(timing.getKey()).append(' ').append(timing.getValue()).append("ms");
+			if (failed.get(timing.getKey())) {
+				text.append(" (failed)");
+			}
+		}
+		return text.append(" | total ").append(getElapsedMillis()).append("ms").toString();
+	}
+	
+	private synchronized String[] phaseNames() {
+		return phases.keySet().toArray(new String[0]);
+	}
+}
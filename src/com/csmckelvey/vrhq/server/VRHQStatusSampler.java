@@ -0,0 +1,393 @@
+package com.csmckelvey.vrhq.server;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.csmckelvey.vrhq.core.VRHQLogger;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+//	Samples cpu, load, memory, uptime and interface counters from /proc on a fixed interval
+//	The /proc files stay open and are re-read into one reusable buffer, values are parsed straight from the bytes
+//	and written into preallocated primitive rings, so a tick allocates nothing
+//	STATUS is then answered from the latest sample, and optionally a window of history, without running anything
+public class VRHQStatusSampler {
+	
+	public static final String PROC_STAT = "/proc/stat";
+	public static final String PROC_LOADAVG = "/proc/loadavg";
+	public static final String PROC_MEMINFO = "/proc/meminfo";
+	public static final String PROC_UPTIME = "/proc/uptime";
+	
+	private static final int MAX_INTERFACES = 16;
+	private static final int IF_RX_BYTES = 0;
+	private static final int IF_RX_PACKETS = 1;
+	private static final int IF_TX_BYTES = 2;
+	private static final int IF_TX_PACKETS = 3;
+	private static final int IF_FIELDS = 4;
+	
+	private static final byte[] MEM_TOTAL = "MemTotal:".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] MEM_AVAILABLE = "MemAvailable:".getBytes(StandardCharsets.US_ASCII);
+	
+	private final int capacity;
+	private final long[] times;
+	private final int[] cpuBusy;
+	private final int[] load1;
+	private final int[] load5;
+	private final int[] load15;
+	private final long[] memTotal;
+	private final long[] memAvailable;
+	private final long[] uptimes;
+	private final long[] interfaceCounters;
+	
+	//	Interfaces are numbered in the order they first show up in /proc/net/dev
+	private final byte[][] interfaceNames = new byte[MAX_INTERFACES][];
+	private final String[] interfaceLabels = new String[MAX_INTERFACES];
+	private volatile int interfaceCount = 0;
+	
+	//	Samples written so far, the latest is at (written - 1) % capacity
+	private volatile long written = 0;
+	private long lastTickNanos = 0;
+	
+	private final byte[] buffer = new byte[16384];
+	private int cursor = 0;
+	private long previousCpuTotal = -1;
+	private long previousCpuIdle = 0;
+	
+	private RandomAccessFile stat;
+	private RandomAccessFile loadavg;
+	private RandomAccessFile meminfo;
+	private RandomAccessFile uptime;
+	private RandomAccessFile netdev;
+	private ScheduledExecutorService sampler = null;
+	
+	private static VRHQLogger logger = null;
+	
+	static {
+		logger = VRHQLogger.getLogger();
+	}
+	
+	public VRHQStatusSampler(int capacity) {
+		this.capacity = Math.max(2, capacity);
+		this.times = new long[this.capacity];
+		this.cpuBusy = new int[this.capacity];
+		this.load1 = new int[this.capacity];
+		this.load5 = new int[this.capacity];
+		this.load15 = new int[this.capacity];
+		this.memTotal = new long[this.capacity];
+		this.memAvailable = new long[this.capacity];
+		this.uptimes = new long[this.capacity];
+		this.interfaceCounters = new long[this.capacity * MAX_INTERFACES * IF_FIELDS];
+	}
+	
+	//	Returns false when /proc is not there, on Windows for example, and STATUS stays unavailable
+	public synchronized boolean start(long intervalMillis) {
+		if (sampler != null || intervalMillis <= 0) {
+			return sampler != null;
+		}
+		
+		try {
+			stat = new RandomAccessFile(PROC_STAT, "r");
+			loadavg = new RandomAccessFile(PROC_LOADAVG, "r");
+			meminfo = new RandomAccessFile(PROC_MEMINFO, "r");
+			uptime = new RandomAccessFile(PROC_UPTIME, "r");
+			netdev = new RandomAccessFile(VRHQNetworkInfo.PROC_NET_DEV, "r");
+		} catch (IOException e) {
+			logger.log("Status Sampler Disabled: " + e.getMessage());
+			close();
+			return false;
+		}
+		
+		sampler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "vrhq-status");
+			thread.setDaemon(true);
+			return thread;
+		});
+		sampler.scheduleAtFixedRate(this::tick, 0, intervalMillis, TimeUnit.MILLISECONDS);
+		logger.log("Status Sampler Every " + intervalMillis + "ms, " + capacity + " Samples Kept");
+		return true;
+	}
+	
+	public synchronized void shutdown() {
+		if (sampler != null) {
+			sampler.shutdownNow();
+			sampler = null;
+		}
+		close();
+	}
+	
+	public boolean isRunning() {
+		return written > 0;
+	}
+	
+	//	How long the last tick took, to keep an eye on the sampling cost
+	public long getLastTickNanos() {
+		return lastTickNanos;
+	}
+	
+	void tick() {
+		long start = System.nanoTime();
+		int slot = (int) (written % capacity);
+		try {
+			times[slot] = System.currentTimeMillis();
+			sampleCpu(slot);
+			sampleLoad(slot);
+			sampleMemory(slot);
+			sampleUptime(slot);
+			sampleInterfaces(slot);
+			written = written + 1;
+		} catch (IOException | RuntimeException e) {
+			logger.logException(e);
+		}
+		lastTickNanos = System.nanoTime() - start;
+	}
+	
+	//	cpu  user nice system idle iowait irq softirq steal ...
+	private void sampleCpu(int slot) throws IOException {
+		int length = read(stat);
+		cursor = 3;
+		long total = 0;
+		long idle = 0;
+		for (int field = 0; field < 8; field++) {
+			long value = nextLong(length);
+			total += value;
+			if (field == 3 || field == 4) {
+				idle += value;
+			}
+		}
+		
+		//	Busy share since the previous tick in tenths of a percent
+		if (previousCpuTotal >= 0 && total > previousCpuTotal) {
+			cpuBusy[slot] = (int) (1000 - (idle - previousCpuIdle) * 1000 / (total - previousCpuTotal));
+		}
+		else {
+			cpuBusy[slot] = 0;
+		}
+		previousCpuTotal = total;
+		previousCpuIdle = idle;
+	}
+	
+	//	0.52 0.58 0.59 1/467 12345
+	private void sampleLoad(int slot) throws IOException {
+		int length = read(loadavg);
+		cursor = 0;
+		load1[slot] = nextHundredths(length);
+		load5[slot] = nextHundredths(length);
+		load15[slot] = nextHundredths(length);
+	}
+	
+	private void sampleMemory(int slot) throws IOException {
+		int length = read(meminfo);
+		memTotal[slot] = valueAfter(MEM_TOTAL, length);
+		memAvailable[slot] = valueAfter(MEM_AVAILABLE, length);
+	}
+	
+	//	12345.67 23456.78
+	private void sampleUptime(int slot) throws IOException {
+		int length = read(uptime);
+		cursor = 0;
+		uptimes[slot] = nextLong(length);
+	}
+	
+	//	Two header lines, then "  eth0: rxBytes rxPackets ... txBytes txPackets ..." per interface
+	private void sampleInterfaces(int slot) throws IOException {
+		int length = read(netdev);
+		int base = slot * MAX_INTERFACES * IF_FIELDS;
+		Arrays.fill(interfaceCounters, base, base + MAX_INTERFACES * IF_FIELDS, 0);
+		
+		int line = nextLine(nextLine(0, length), length);
+		while (line < length) {
+			int nameStart = line;
+			while (nameStart < length && buffer[nameStart] == ' ') {
+				nameStart++;
+			}
+			int colon = nameStart;
+			while (colon < length && buffer[colon] != ':' && buffer[colon] != '\n') {
+				colon++;
+			}
+			if (colon >= length || buffer[colon] != ':') {
+				break;
+			}
+			
+			int index = interfaceIndex(nameStart, colon);
+			cursor = colon + 1;
+			if (index >= 0) {
+				int offset = base + index * IF_FIELDS;
+				for (int column = 0; column <= VRHQNetworkInfo.TX_PACKETS; column++) {
+					long value = nextLong(length);
+					if (column == VRHQNetworkInfo.RX_BYTES) {
+						interfaceCounters[offset + IF_RX_BYTES] = value;
+					}
+					else if (column == VRHQNetworkInfo.RX_PACKETS) {
+						interfaceCounters[offset + IF_RX_PACKETS] = value;
+					}
+					else if (column == VRHQNetworkInfo.TX_BYTES) {
+						interfaceCounters[offset + IF_TX_BYTES] = value;
+					}
+					else if (column == VRHQNetworkInfo.TX_PACKETS) {
+						interfaceCounters[offset + IF_TX_PACKETS] = value;
+					}
+				}
+			}
+			line = nextLine(cursor, length);
+		}
+	}
+	
+	//	Only a new interface allocates, its name is kept for every later tick
+	private int interfaceIndex(int start, int end) {
+		int count = interfaceCount;
+		for (int i = 0; i < count; i++) {
+			byte[] name = interfaceNames[i];
+			if (Arrays.equals(name, 0, name.length, buffer, start, end)) {
+				return i;
+			}
+		}
+		if (count == MAX_INTERFACES) {
+			return -1;
+		}
+		
+		interfaceNames[count] = Arrays.copyOfRange(buffer, start, end);
+		interfaceLabels[count] = new String(buffer, start, end - start, StandardCharsets.US_ASCII);
+		interfaceCount = count + 1;
+		return count;
+	}
+	
+	//	The latest sample, plus up to historySeconds of older ones oldest first
+	//	A window longer than the ring returns everything but the slot the sampler may be writing
+	public JsonObject getStatus(long historySeconds) {
+		long count = written;
+		if (count == 0) {
+			return null;
+		}
+		
+		int latest = (int) ((count - 1) % capacity);
+		JsonObject status = toJson(latest);
+		
+		if (historySeconds > 0) {
+			long since = times[latest] - TimeUnit.SECONDS.toMillis(historySeconds);
+			long available = Math.min(count, capacity - 1);
+			long first = count - 1;
+			while (first > count - available && times[(int) ((first - 1) % capacity)] >= since) {
+				first--;
+			}
+			
+			JsonArray history = new JsonArray();
+			for (long sample = first; sample < count - 1; sample++) {
+				history.add(toJson((int) (sample % capacity)));
+			}
+			status.add("history", history);
+		}
+		return status;
+	}
+	
+	private JsonObject toJson(int slot) {
+		JsonObject sample = new JsonObject();
+		sample.addProperty("time", times[slot]);
+		sample.addProperty("uptime", uptimes[slot]);
+		sample.addProperty("cpu", cpuBusy[slot] / 10.0);
+		
+		JsonArray load = new JsonArray();
+		load.add(load1[slot] / 100.0);
+		load.add(load5[slot] / 100.0);
+		load.add(load15[slot] / 100.0);
+		sample.add("load", load);
+		
+		JsonObject memory = new JsonObject();
+		memory.addProperty("totalKB", memTotal[slot]);
+		memory.addProperty("availableKB", memAvailable[slot]);
+		sample.add("memory", memory);
+		
+		JsonObject interfaces = new JsonObject();
+		int base = slot * MAX_INTERFACES * IF_FIELDS;
+		for (int i = 0; i < interfaceCount; i++) {
+			int offset = base + i * IF_FIELDS;
+			JsonObject counters = new JsonObject();
+			counters.addProperty("rxBytes", interfaceCounters[offset + IF_RX_BYTES]);
+			counters.addProperty("rxPackets", interfaceCounters[offset + IF_RX_PACKETS]);
+			counters.addProperty("txBytes", interfaceCounters[offset + IF_TX_BYTES]);
+			counters.addProperty("txPackets", interfaceCounters[offset + IF_TX_PACKETS]);
+			interfaces.add(interfaceLabels[i], counters);
+		}
+		sample.add("interfaces", interfaces);
+		return sample;
+	}
+	
+	//	/proc files are generated on every read from the start, so seeking back re-samples them
+	private int read(RandomAccessFile file) throws IOException {
+		file.seek(0);
+		int length = 0;
+		int count;
+		while (length < buffer.length && (count = file.read(buffer, length, buffer.length - length)) > 0) {
+			length += count;
+		}
+		return length;
+	}
+	
+	private long nextLong(int length) {
+		while (cursor < length && (buffer[cursor] < '0' || buffer[cursor] > '9')) {
+			cursor++;
+		}
+		long value = 0;
+		while (cursor < length && buffer[cursor] >= '0' && buffer[cursor] <= '9') {
+			value = value * 10 + (buffer[cursor++] - '0');
+		}
+		return value;
+	}
+	
+	//	"0.52" as 52
+	private int nextHundredths(int length) {
+		long whole = nextLong(length);
+		int fraction = 0;
+		if (cursor < length && buffer[cursor] == '.') {
+			cursor++;
+			for (int digit = 0; digit < 2; digit++) {
+				fraction *= 10;
+				if (cursor < length && buffer[cursor] >= '0' && buffer[cursor] <= '9') {
+					fraction += buffer[cursor++] - '0';
+				}
+			}
+			while (cursor < length && buffer[cursor] >= '0' && buffer[cursor] <= '9') {
+				cursor++;
+			}
+		}
+		return (int) (whole * 100 + fraction);
+	}
+	
+	private long valueAfter(byte[] key, int length) {
+		for (int line = 0; line < length; line = nextLine(line, length)) {
+			if (line + key.length <= length && Arrays.equals(key, 0, key.length, buffer, line, line + key.length)) {
+				cursor = line + key.length;
+				return nextLong(length);
+			}
+		}
+		return 0;
+	}
+	
+	private int nextLine(int position, int length) {
+		while (position < length && buffer[position] != '\n') {
+			position++;
+		}
+		return position + 1;
+	}
+	
+	private void close() {
+		for (RandomAccessFile file : new RandomAccessFile[] { stat, loadavg, meminfo, uptime, netdev }) {
+			if (file != null) {
+				try {
+					file.close();
+				} catch (IOException e) {
+					logger.logException(e);
+				}
+			}
+		}
+		stat = null;
+		loadavg = null;
+		meminfo = null;
+		uptime = null;
+		netdev = null;
+	}
+}
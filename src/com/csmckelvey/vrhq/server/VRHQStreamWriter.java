@@ -0,0 +1,33 @@
+package com.csmckelvey.vrhq.server;
+
+//	Sends each output line to the client as its own chunk frame, then an end frame with the exit code
+public class VRHQStreamWriter implements VRHQOutputHandler {
+	
+	private final VRHQFrameEncoder encoder;
+	private final String id;
+	
+	public VRHQStreamWriter(VRHQFrameEncoder encoder) {
+		this(encoder, null);
+	}
+	
+	//	Tags every frame with the id of the pipelined request it answers
+	public VRHQStreamWriter(VRHQFrameEncoder encoder, String id) {
+		this.encoder = encoder;
+		this.id = id;
+	}
+	
+	@Override
+	public void onOutput(String line) {
+		encoder.writeChunk(id, line + "\n");
+	}
+	
+	@Override
+	public void onComplete(int exitCode) {
+		encoder.writeEnd(id, exitCode);
+	}
+	
+	@Override
+	public boolean checkError() {
+		return encoder.checkError();
+	}
+}
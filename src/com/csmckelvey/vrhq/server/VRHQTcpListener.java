@@ -0,0 +1,199 @@
+package com.csmckelvey.vrhq.server;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import com.csmckelvey.vrhq.core.VRHQLogger;
+
+public class VRHQTcpListener implements Runnable {
+
+	//	How long to wait before binding again when the port is taken, doubled on every failure up to the max
+	private static final long BIND_RETRY_MILLIS = 1000;
+	private static final long MAX_BIND_RETRY_MILLIS = 30000;
+
+	private final int port;
+	private final Semaphore connectionPermits;
+	private final ConnectionHandler handler;
+	private final ExecutorService workers;
+	private final Set<Socket> activeSockets = ConcurrentHashMap.newKeySet();
+
+	private volatile boolean running = false;
+	private volatile ServerSocket serverSocket = null;
+	private volatile Thread acceptThread = null;
+
+	private static VRHQLogger logger = null;
+
+	private static VRHQServerLogger requestLogger = VRHQServerLogger.getLogger();
+
+	static {
+		logger = VRHQLogger.getLogger();
+	}
+
+	//	Each accepted socket is handed to the handler on its own virtual thread
+	//	The handler owns the protocol, the listener only owns accept, concurrency and shutdown
+	public interface ConnectionHandler {
+		void handleConnection(Socket socket) throws IOException;
+	}
+
+	public VRHQTcpListener(int port, int maxConnections, ConnectionHandler handler) {
+		this.port = port;
+		this.handler = handler;
+		this.connectionPermits = new Semaphore(maxConnections);
+		this.workers = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("vrhq-tcp-", 0).factory());
+	}
+
+	//	Binding ahead of start() lets the caller know the port is open, and see why when it is not
+	public void bind() throws IOException {
+		if (serverSocket == null) {
+			serverSocket = new ServerSocket(port);
+		}
+	}
+
+	public boolean isBound() {
+		return serverSocket != null;
+	}
+
+	public void start() {
+		new Thread(this, "vrhq-tcp-accept").start();
+	}
+
+	@Override
+	public void run() {
+		running = true;
+		acceptThread = Thread.currentThread();
+		try {
+			bindWithRetry();
+			if (running) {
+				logger.log("TCP Listener Started @ " + port, 0, 0, true);
+			}
+
+			while (running) {
+				//	Take the permit before accepting so excess clients wait in the backlog instead of on a thread
+				connectionPermits.acquire();
+				Socket socket;
+				try {
+					socket = serverSocket.accept();
+				} catch (IOException e) {
+					connectionPermits.release();
+					throw e;
+				}
+
+				activeSockets.add(socket);
+				workers.execute(() -> serve(socket));
+			}
+		} catch (SocketException e) {
+			if (running) {
+				logger.logException(e);
+			}
+		} catch (IOException e) {
+			logger.logException(e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			running = false;
+			closeServerSocket();
+		}
+
+		logger.log("TCP Listener Stopped", 0, 0, true);
+	}
+
+	//	The port may still be held by an earlier run or another program, like a failed Bluetooth accept it is tried again
+	//	until it frees up or the listener is shut down
+	private void bindWithRetry() throws InterruptedException {
+		long pause = BIND_RETRY_MILLIS;
+		while (running) {
+			try {
+				bind();
+				return;
+			} catch (IOException e) {
+				logger.log("TCP Listener Could Not Bind " + port + ": " + e.getMessage() + ", Retrying In " + pause + "ms", 0, 0, true);
+				Thread.sleep(pause);
+				pause = Math.min(pause * 2, MAX_BIND_RETRY_MILLIS);
+			}
+		}
+	}
+
+	private void serve(Socket socket) {
+		try {
+			requestLogger.debug("Got A Connection From {}", socket.getInetAddress());
+			//	Responses go out as several small frames, Nagle would hold each one back until the previous is acknowledged
+			socket.setTcpNoDelay(true);
+			handler.handleConnection(socket);
+		} catch (IOException e) {
+			if (running) {
+				requestLogger.exception(e);
+			}
+		} catch (RuntimeException e) {
+			requestLogger.exception(e);
+		} finally {
+			activeSockets.remove(socket);
+			try {
+				socket.close();
+			}
+			catch (IOException e) {
+				requestLogger.exception(e);
+			}
+			connectionPermits.release();
+		}
+	}
+
+	public void shutdown() {
+		logger.log("Stopping TCP Listener...", 0, 0, true);
+		running = false;
+		closeServerSocket();
+
+		//	The accept thread may instead be waiting to bind again
+		Thread accepting = acceptThread;
+		if (accepting != null) {
+			accepting.interrupt();
+		}
+
+		//	Closing the sockets unblocks any handler that is still waiting on a read
+		for (Socket socket : activeSockets) {
+			try {
+				socket.close();
+			}
+			catch (IOException e) {
+				logger.logException(e);
+			}
+		}
+
+		workers.shutdown();
+		try {
+			if (!workers.awaitTermination(5, TimeUnit.SECONDS)) {
+				workers.shutdownNow();
+			}
+		} catch (InterruptedException e) {
+			workers.shutdownNow();
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	public boolean isRunning() {
+		return running;
+	}
+
+	public int getActiveConnections() {
+		return activeSockets.size();
+	}
+
+	private void closeServerSocket() {
+		ServerSocket current = serverSocket;
+		if (current != null && !current.isClosed()) {
+			try {
+				current.close();
+			}
+			catch (IOException e) {
+				logger.logException(e);
+			}
+		}
+	}
+}
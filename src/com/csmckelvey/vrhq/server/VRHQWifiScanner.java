@@ -0,0 +1,499 @@
+package com.csmckelvey.vrhq.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.csmckelvey.vrhq.core.VRHQLogger;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+//	Scans for Wi-Fi networks in the background so LIST_NETWORKS is answered from memory instead of waiting on the radio
+//	A scan takes seconds and triggering one needs root on most drivers, so without root the driver's last results are read
+//	/proc/net/wireless names the wireless interface and gives the live signal of the network we are connected to
+//	Networks are kept by BSSID, one missed by a scan is only dropped once it has not been seen for expiryMillis
+//	Scans start their own process on the scanner's thread, they never hold one of the process executor's threads that clients need
+public class VRHQWifiScanner {
+
+	public static final String PROC_NET_WIRELESS = "/proc/net/wireless";
+	public static final String SYS_CLASS_NET = "/sys/class/net";
+	
+	private final boolean windows;
+	private final String configuredInterface;
+	private final long timeoutMillis;
+	private final long expiryMillis;
+	
+	//	BSSID -> latest record, strongest first, replaced as a whole after every scan
+	private volatile Map<String, Network> networks = Collections.emptyMap();
+	private volatile long scannedAt = 0;
+	private volatile long scanMillis = 0;
+	private volatile String lastError = null;
+	private volatile String wirelessInterface = null;
+	private ScheduledExecutorService scanner = null;
+	
+	private static VRHQLogger logger = null;
+	
+	private static VRHQServerLogger requestLogger = VRHQServerLogger.getLogger();
+	
+	static {
+		logger = VRHQLogger.getLogger();
+	}
+	
+	public static class Network {
+		
+		private final String ssid;
+		private final String bssid;
+		private final int signal;
+		private final int channel;
+		private final int frequency;
+		private final long lastSeen;
+		private final boolean connected;
+		
+		public Network(String ssid, String bssid, int signal, int channel, int frequency, long lastSeen, boolean connected) {
+			this.ssid = ssid;
+			this.bssid = bssid;
+			this.signal = signal;
+			this.channel = channel;
+			this.frequency = frequency;
+			this.lastSeen = lastSeen;
+			this.connected = connected;
+		}
+		
+		//	Empty for a hidden network
+		public String getSsid() {
+			return ssid;
+		}
+		
+		//	Lower case, the index key
+		public String getBssid() {
+			return bssid;
+		}
+		
+		//	dBm
+		public int getSignal() {
+			return signal;
+		}
+		
+		//	0 when unknown
+		public int getChannel() {
+			return channel;
+		}
+		
+		//	MHz, 0 when unknown
+		public int getFrequency() {
+			return frequency;
+		}
+		
+		public long getLastSeen() {
+			return lastSeen;
+		}
+		
+		public boolean isConnected() {
+			return connected;
+		}
+		
+		Network withSignal(int signal) {
+			return new Network(ssid, bssid, signal, channel, frequency, lastSeen, connected);
+		}
+		
+		JsonObject toJson(long now) {
+			JsonObject json = new JsonObject();
+			json.addProperty("ssid", ssid);
+			json.addProperty("bssid", bssid);
+			json.addProperty("signal", signal);
+			json.addProperty("channel", channel);
+			json.addProperty("frequency", frequency);
+			json.addProperty("connected", connected);
+			json.addProperty("ageMillis", Math.max(0, now - lastSeen));
+			return json;
+		}
+	}
+	
+	public VRHQWifiScanner(boolean windows, String wirelessInterface, long timeoutMillis, long expiryMillis) {
+		this.windows = windows;
+		this.configuredInterface = wirelessInterface == null || wirelessInterface.isBlank() ? null : wirelessInterface.trim();
+		this.timeoutMillis = timeoutMillis;
+		this.expiryMillis = expiryMillis;
+	}
+	
+	//	The first scan starts straight away, LIST_NETWORKS answers with an empty list and no age until it is done
+	public synchronized boolean start(long intervalMillis) {
+		if (scanner != null || intervalMillis <= 0) {
+			return scanner != null;
+		}
+		
+		scanner = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "vrhq-wifi-scan");
+			thread.setDaemon(true);
+			return thread;
+		});
+		scanner.scheduleWithFixedDelay(this::scan, 0, intervalMillis, TimeUnit.MILLISECONDS);
+		logger.log("Wi-Fi Scanner Every " + intervalMillis + "ms");
+		return true;
+	}
+	
+	public synchronized void shutdown() {
+		if (scanner != null) {
+			scanner.shutdownNow();
+			scanner = null;
+		}
+	}
+	
+	void scan() {
+		long start = System.currentTimeMillis();
+		List<Network> found;
+		try {
+			found = windows ? scanWindows(start) : scanLinux(start);
+		} catch (IOException e) {
+			if (!Objects.equals(e.getMessage(), lastError)) {
+				requestLogger.info("Wi-Fi Scan Failed: {}", e.getMessage());
+			}
+			lastError = e.getMessage();
+			return;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return;
+		}
+		
+		//	Networks this scan missed stay until they expire, the newest record for a BSSID wins
+		Map<String, Network> merged = new HashMap<>();
+		for (Network network : networks.values()) {
+			if (start - network.getLastSeen() < expiryMillis) {
+				merged.put(network.getBssid(), network);
+			}
+		}
+		for (Network network : found) {
+			Network previous = merged.get(network.getBssid());
+			if (previous == null || previous.getLastSeen() <= network.getLastSeen() || network.isConnected()) {
+				merged.put(network.getBssid(), network);
+			}
+		}
+		
+		List<Network> sorted = new ArrayList<>(merged.values());
+		sorted.sort(Comparator.comparingInt(Network::getSignal).reversed());
+		Map<String, Network> index = new LinkedHashMap<>();
+		for (Network network : sorted) {
+			index.put(network.getBssid(), network);
+		}
+		
+		networks = Collections.unmodifiableMap(index);
+		scannedAt = start;
+		scanMillis = System.currentTimeMillis() - start;
+		lastError = null;
+		requestLogger.debug("Wi-Fi Scan Found {} Networks In {}ms", found.size(), scanMillis);
+	}
+	
+	private List<Network> scanLinux(long now) throws IOException, InterruptedException {
+		Map<String, Integer> levels = readProcWireless();
+		String name = configuredInterface != null ? configuredInterface : findInterface(levels);
+		if (name == null) {
+			throw new IOException("No Wireless Interface");
+		}
+		wirelessInterface = name;
+		
+		//	Triggering a scan needs CAP_NET_ADMIN, what the driver found last time can be dumped by anyone
+		String output = run(new String[] { "iw", "dev", name, "scan" });
+		if (output == null) {
+			output = run(new String[] { "iw", "dev", name, "scan", "dump" });
+			if (output == null) {
+				throw new IOException("iw Failed On " + name);
+			}
+		}
+		
+		List<Network> found = parseIw(output, now);
+		
+		//	The link level in /proc/net/wireless is current, the scan's figure for our own network may be seconds old
+		Integer level = levels.get(name);
+		if (level != null) {
+			for (int i = 0; i < found.size(); i++) {
+				if (found.get(i).isConnected()) {
+					found.set(i, found.get(i).withSignal(level));
+				}
+			}
+		}
+		return found;
+	}
+	
+	private List<Network> scanWindows(long now) throws IOException, InterruptedException {
+		String output = run(new String[] { "netsh", "wlan", "show", "networks", "mode=bssid" });
+		if (output == null) {
+			throw new IOException("netsh Failed");
+		}
+		return parseNetsh(output, now);
+	}
+	
+	//	The command's stdout, or null when it exited with an error, a command still running after timeoutMillis is killed
+	private String run(String[] command) throws IOException, InterruptedException {
+		Process process = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.DISCARD).start();
+		try {
+			process.getOutputStream().close();
+			
+			//	Read on another thread so this one can give up on a command that hangs
+			CompletableFuture<byte[]> output = new CompletableFuture<>();
+			Thread.ofVirtual().name("vrhq-wifi-output").start(() -> {
+				try (InputStream in = process.getInputStream()) {
+					output.complete(in.readAllBytes());
+				} catch (IOException e) {
+					output.completeExceptionally(e);
+				}
+			});
+			
+			if (!process.waitFor(timeoutMillis, TimeUnit.MILLISECONDS)) {
+				throw new IOException(command[0] + " Timed Out After " + timeoutMillis + "ms");
+			}
+			if (process.exitValue() != 0) {
+				return null;
+			}
+			return new String(output.get(timeoutMillis, TimeUnit.MILLISECONDS), StandardCharsets.UTF_8);
+		} catch (ExecutionException | TimeoutException e) {
+			throw new IOException(command[0] + " Output Could Not Be Read");
+		} finally {
+			//	Children too, one left behind would hold the output pipe open
+			process.descendants().forEach(ProcessHandle::destroyForcibly);
+			process.destroyForcibly();
+		}
+	}
+	
+	//	Interface -> link level in dBm, from lines like "wlan0: 0000   54.  -56.  -256  ..."
+	static Map<String, Integer> readProcWireless() {
+		Map<String, Integer> levels = new LinkedHashMap<>();
+		List<String> lines;
+		try {
+			lines = Files.readAllLines(Paths.get(PROC_NET_WIRELESS), StandardCharsets.US_ASCII);
+		} catch (IOException e) {
+			return levels;
+		}
+		
+		//	Two header lines come first
+		for (int i = 2; i < lines.size(); i++) {
+			String line = lines.get(i).trim();
+			int colon = line.indexOf(':');
+			if (colon <= 0) {
+				continue;
+			}
+			
+			String[] fields = line.substring(colon + 1).trim().split("\\s+");
+			if (fields.length < 3) {
+				continue;
+			}
+			//	A level of 0 or above means the interface is not connected, it is still a wireless interface
+			Integer level = null;
+			try {
+				int value = (int) Double.parseDouble(fields[2]);
+				level = value < 0 ? value : null;
+			} catch (NumberFormatException e) {
+				//	Unparsable level, treated as not connected
+			}
+			levels.put(line.substring(0, colon), level);
+		}
+		return levels;
+	}
+	
+	//	/proc/net/wireless only lists an interface while it is up, /sys/class/net lists it regardless
+	private static String findInterface(Map<String, Integer> levels) {
+		if (!levels.isEmpty()) {
+			return levels.keySet().iterator().next();
+		}
+		
+		try (DirectoryStream<Path> interfaces = Files.newDirectoryStream(Paths.get(SYS_CLASS_NET))) {
+			for (Path candidate : interfaces) {
+				if (Files.isDirectory(candidate.resolve("wireless"))) {
+					return candidate.getFileName().toString();
+				}
+			}
+		} catch (IOException e) {
+			//	No sysfs
+		}
+		return null;
+	}
+	
+	//	iw prints a "BSS" line per network followed by tab indented properties
+	static List<Network> parseIw(String output, long now) {
+		List<Network> found = new ArrayList<>();
+		String bssid = null;
+		String ssid = "";
+		int signal = 0;
+		int frequency = 0;
+		int channel = 0;
+		long lastSeen = now;
+		boolean connected = false;
+		
+		for (String line : (output + "\nBSS end").split("\n")) {
+			if (line.startsWith("BSS ")) {
+				if (bssid != null) {
+					found.add(new Network(ssid, bssid, signal, channel != 0 ? channel : channel(frequency), frequency, lastSeen, connected));
+				}
+				
+				//	"BSS 00:11:22:33:44:55(on wlan0) -- associated"
+				String address = line.substring(4).trim();
+				int end = 0;
+				while (end < address.length() && (Character.digit(address.charAt(end), 16) >= 0 || address.charAt(end) == ':')) {
+					end++;
+				}
+				bssid = end == 17 ? address.substring(0, end).toLowerCase(Locale.ROOT) : null;
+				connected = line.endsWith("associated");
+				ssid = "";
+				signal = 0;
+				frequency = 0;
+				channel = 0;
+				lastSeen = now;
+				continue;
+			}
+			
+			String property = line.trim();
+			try {
+				if (property.startsWith("SSID: ")) {
+					ssid = property.substring(6);
+				}
+				else if (property.startsWith("signal: ")) {
+					signal = (int) Math.round(Double.parseDouble(property.substring(8).replace("dBm", "").trim()));
+				}
+				else if (property.startsWith("freq: ")) {
+					frequency = (int) Double.parseDouble(property.substring(6).trim());
+				}
+				else if (property.startsWith("DS Parameter set: channel ")) {
+					channel = Integer.parseInt(property.substring(26).trim());
+				}
+				else if (property.startsWith("* primary channel: ")) {
+					channel = Integer.parseInt(property.substring(19).trim());
+				}
+				else if (property.startsWith("last seen: ") && property.endsWith(" ms ago")) {
+					lastSeen = now - Long.parseLong(property.substring(11, property.length() - 7).trim());
+				}
+			} catch (NumberFormatException e) {
+				//	A property this version of iw prints differently, the record keeps its default
+			}
+		}
+		return found;
+	}
+	
+	//	netsh lists "SSID n : name" then one "BSSID n : address" block per access point of that network
+	static List<Network> parseNetsh(String output, long now) {
+		List<Network> found = new ArrayList<>();
+		String ssid = "";
+		String bssid = null;
+		int signal = 0;
+		int channel = 0;
+		
+		for (String line : (output + "\nBSSID end : ").split("\n")) {
+			int separator = line.indexOf(" : ");
+			if (separator < 0) {
+				continue;
+			}
+			String key = line.substring(0, separator).trim();
+			String value = line.substring(separator + 3).trim();
+			
+			if (key.startsWith("SSID ") || key.startsWith("BSSID ")) {
+				if (bssid != null) {
+					found.add(new Network(ssid, bssid, signal, channel, frequency(channel), now, false));
+					bssid = null;
+				}
+				if (key.startsWith("SSID ")) {
+					ssid = value;
+				}
+				else if (value.length() == 17) {
+					bssid = value.toLowerCase(Locale.ROOT);
+					signal = 0;
+					channel = 0;
+				}
+				continue;
+			}
+			
+			try {
+				//	netsh only gives a quality percentage, Windows maps -100 dBm to 0% and -50 dBm to 100%
+				if (key.equals("Signal") && value.endsWith("%")) {
+					signal = Integer.parseInt(value.substring(0, value.length() - 1).trim()) / 2 - 100;
+				}
+				else if (key.equals("Channel")) {
+					channel = Integer.parseInt(value);
+				}
+			} catch (NumberFormatException e) {
+				//	Localised output, the record keeps its default
+			}
+		}
+		return found;
+	}
+	
+	static int channel(int frequency) {
+		if (frequency == 2484) {
+			return 14;
+		}
+		if (frequency >= 2412 && frequency < 2484) {
+			return (frequency - 2407) / 5;
+		}
+		if (frequency >= 5955 && frequency <= 7115) {
+			return (frequency - 5950) / 5;
+		}
+		if (frequency >= 5000 && frequency < 5955) {
+			return (frequency - 5000) / 5;
+		}
+		return 0;
+	}
+	
+	static int frequency(int channel) {
+		if (channel == 14) {
+			return 2484;
+		}
+		if (channel >= 1 && channel < 14) {
+			return 2407 + channel * 5;
+		}
+		if (channel >= 32 && channel <= 177) {
+			return 5000 + channel * 5;
+		}
+		return 0;
+	}
+	
+	//	Every network, or just the one with this BSSID, along with how old the scan is
+	public JsonObject getNetworks(String bssid) {
+		long now = System.currentTimeMillis();
+		Map<String, Network> current = networks;
+		long scanned = scannedAt;
+		
+		JsonArray list = new JsonArray();
+		if (bssid == null || bssid.isBlank()) {
+			for (Network network : current.values()) {
+				list.add(network.toJson(now));
+			}
+		}
+		else {
+			Network network = current.get(bssid.trim().toLowerCase(Locale.ROOT));
+			if (network != null) {
+				list.add(network.toJson(now));
+			}
+		}
+		
+		JsonObject result = new JsonObject();
+		result.addProperty("interface", wirelessInterface);
+		result.addProperty("scannedAt", scanned == 0 ? null : scanned);
+		result.addProperty("ageMillis", scanned == 0 ? null : now - scanned);
+		result.addProperty("scanMillis", scanMillis);
+		if (lastError != null) {
+			result.addProperty("error", lastError);
+		}
+		result.add("networks", list);
+		return result;
+	}
+	
+	public int getNetworkCount() {
+		return networks.size();
+	}
+}